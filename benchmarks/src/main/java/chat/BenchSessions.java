@@ -0,0 +1,77 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Fake clients for the benchmarks: real {@link ClientSession}s whose key is a {@link FakeKey}, owned by
+ * an {@link EventLoop} that the benchmark thread adopts. Sends take the same path as in the server
+ * (queue, slow-consumer check, OP_WRITE interest) without sockets or file descriptors.
+ */
+final class BenchSessions {
+
+    /// JVM flags for every fork: logging off the console and out of the project dir
+    static final String QUIET_LOG = "-Dchat.log.console=false";
+    static final String LOG_FILE = "-Dchat.log.file=chat-bench.log";
+
+    private BenchSessions() {
+    }
+
+    /// A loop whose "thread" is the caller, so send() enqueues directly instead of going through the mailbox
+    static EventLoop adoptedLoop() throws IOException {
+        EventLoop loop = new EventLoop("bench-loop");
+        loop.adoptCurrentThread();
+        return loop;
+    }
+
+    static ClientSession session(String name, EventLoop loop) {
+        ClientSession session = new ClientSession(name);
+        session.setLoop(loop);
+        session.setKey(new FakeKey());
+        return session;
+    }
+
+    /// Always valid, remembers interest ops, has no channel
+    static final class FakeKey extends SelectionKey {
+        private int interestOps = OP_READ;
+        private boolean valid = true;
+
+        @Override
+        public SelectableChannel channel() {
+            return null;
+        }
+
+        @Override
+        public Selector selector() {
+            return null;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+
+        @Override
+        public void cancel() {
+            valid = false;
+        }
+
+        @Override
+        public int interestOps() {
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One chat line broadcast to 10, 1k and 10k connected clients through {@link ChatServer#broadcast}:
+ * encode once, record in the history, queue a view per recipient. Each invocation then clears the
+ * queues, which releases the views the way a completed write would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchSessions.QUIET_LOG, BenchSessions.LOG_FILE})
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int clients;
+
+    private final List<ClientSession> sessions = new ArrayList<>();
+    private ClientSession sender;
+
+    @Setup
+    public void setUp() throws IOException {
+        EventLoop loop = BenchSessions.adoptedLoop();
+        for (int i = 0; i < clients; i++) {
+            ClientSession session = BenchSessions.session("bench" + i, loop);
+            ChatServer.sessions.register(session);
+            sessions.add(session);
+        }
+        sender = sessions.get(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ClientSession session : sessions) {
+            session.getOutbound().clear();
+            ChatServer.sessions.remove(session);
+        }
+        sessions.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ChatServer.broadcast(sender, "bench0", "the quick brown fox jumps over the lazy dog", MessageKind.CHAT);
+        for (ClientSession session : sessions) {
+            session.getOutbound().clear();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ChatServer#handleMessage} for {@code /msg}, {@code /nick} and {@code /sendfile} between two
+ * fake clients: dispatch, argument parsing, registry lookups and the replies they queue. Lines are
+ * pre-encoded and fed through a reused {@link CommandLine}, as {@link LineDecoder} hands them over.
+ * Queues are cleared after each call so they never reach the slow-consumer limit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchSessions.QUIET_LOG, BenchSessions.LOG_FILE})
+public class CommandBenchmark {
+
+    private ClientSession alice;
+    private ClientSession bob;
+    private boolean renamed = false;
+    private final CommandLine view = new CommandLine();
+    private final ByteBuffer msg = encode("/msg bob are we still on for the deploy at five?");
+    private final ByteBuffer nickAway = encode("/nick alice2");
+    private final ByteBuffer nickBack = encode("/nick alice");
+    private final ByteBuffer sendFile = encode("/sendfile bob notes.txt 4096");
+
+    @Setup
+    public void setUp() throws IOException {
+        EventLoop loop = BenchSessions.adoptedLoop();
+        alice = BenchSessions.session("alice", loop);
+        bob = BenchSessions.session("bob", loop);
+        ChatServer.sessions.register(alice);
+        ChatServer.sessions.register(bob);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChatServer.sessions.remove(alice);
+        ChatServer.sessions.remove(bob);
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        ChatServer.handleMessage(alice, line(msg));
+        drain();
+    }
+
+    /// Renames back and forth, so every call is a successful rename plus its presence broadcast
+    @Benchmark
+    public void nick() {
+        ChatServer.handleMessage(alice, line(renamed ? nickBack : nickAway));
+        renamed = !renamed;
+        drain();
+    }
+
+    /// Includes creating the spool file, which is part of what /sendfile costs
+    @Benchmark
+    public void sendFile() throws IOException {
+        ChatServer.handleMessage(alice, line(sendFile));
+        if (alice.getFileSpool() != null) {
+            alice.getFileSpool().close();
+            alice.setFileSpool(null);
+        }
+        alice.setSendingFile(false);
+        drain();
+    }
+
+    private CommandLine line(ByteBuffer bytes) {
+        return view.set(bytes, 0, bytes.limit());
+    }
+
+    private static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void drain() {
+        alice.getOutbound().clear();
+        bob.getOutbound().clear();
+    }
+}
@@ -0,0 +1,87 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * UTF-8 line handling on both sides: {@link LineDecoder} splitting a read of 16 lines, and
+ * {@link SharedPayload#encode} turning one line into pooled bytes. ASCII and emoji-heavy text take
+ * different paths through the charset code, so both are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchSessions.QUIET_LOG, BenchSessions.LOG_FILE})
+public class LineCodecBenchmark {
+
+    private static final int LINES_PER_READ = 16;
+
+    @Param({"ascii", "emoji"})
+    String text;
+
+    private String line;
+    private byte[] packet;
+    private LineDecoder decoder;
+    private BufferPool pool;
+    private ReadableByteChannel source;
+
+    @Setup
+    public void setUp() {
+        line = text.equals("ascii")
+                ? "alice: the quick brown fox jumps over the lazy dog 0123456789"
+                : "alice: 🚀 shipped it 🎉 — déploiement terminé ✅ 日本語もOK 👋";
+        packet = (line + "\r\n").repeat(LINES_PER_READ).getBytes(StandardCharsets.UTF_8);
+        decoder = new LineDecoder(ByteBuffer.allocate(8192));
+        pool = new BufferPool(1024, 64, false);
+        /// Hands out the same packet on every read, like a client that keeps sending
+        source = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                dst.put(packet);
+                return packet.length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Benchmark
+    public void decode16Lines(Blackhole bh) throws Exception {
+        decoder.readFrom(source);
+        CommandLine decoded;
+        while ((decoded = decoder.nextLine()) != null) {
+            bh.consume(decoded.line());
+        }
+    }
+
+    @Benchmark
+    public int encodeLine() {
+        SharedPayload payload = SharedPayload.encode(line, pool);
+        int size = payload.size();
+        payload.release();
+        return size;
+    }
+}
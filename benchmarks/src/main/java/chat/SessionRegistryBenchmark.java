@@ -0,0 +1,66 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SessionRegistry} lookups, which replaced the old {@code clients} and {@code clientSessions}
+ * maps: by name (hit and miss), by id for room fan-out, and the cached {@code /who} text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {BenchSessions.QUIET_LOG, BenchSessions.LOG_FILE})
+public class SessionRegistryBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int users;
+
+    private SessionRegistry registry;
+    private String[] names;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        registry = new SessionRegistry();
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "User" + i;
+            registry.register(new ClientSession(names[i]));
+        }
+    }
+
+    @Benchmark
+    public ClientSession getByName() {
+        next = next + 1 == users ? 0 : next + 1;
+        return registry.get(names[next]);
+    }
+
+    @Benchmark
+    public ClientSession getMissing() {
+        return registry.get("nobody-here");
+    }
+
+    @Benchmark
+    public ClientSession getById() {
+        next = next + 1 == users ? 0 : next + 1;
+        return registry.byId(next);
+    }
+
+    @Benchmark
+    public String who() {
+        return registry.snapshot();
+    }
+}
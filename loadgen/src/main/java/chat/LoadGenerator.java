@@ -0,0 +1,536 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load generator: opens thousands of NIO client connections to a running server and drives
+ * a mix of broadcasts, {@code /msg}, {@code /who}, {@code /nick} and {@code /sendfile} at a fixed rate.
+ * <p>
+ * Every broadcast, private message and file carries a token with this run's id and the
+ * {@link System#nanoTime()} at which it was queued, so the receiving connection measures the delivery
+ * latency directly. {@code /who} and {@code /nick} are timed from request to reply. After the run,
+ * sending stops and the tool waits for stragglers, then compares what arrived with what was expected.
+ * A broadcast should reach every other connection and a private message or file its one recipient;
+ * anything missing is reported as lost. Lines the slow-consumer policy dropped on purpose count as lost.
+ * <p>
+ * Options are {@code key=value} arguments, see {@link #DEFAULTS}. Example:
+ * <pre>
+ * gradle :loadgen:run --args="clients=5000 rate=2000 duration=60 mix=broadcast:70,msg:20,who:5,nick:4,sendfile:1"
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("host", "localhost");
+        DEFAULTS.put("port", "5050");
+        DEFAULTS.put("clients", "1000");     /// connections to open
+        DEFAULTS.put("threads", "2");        /// client selector threads
+        DEFAULTS.put("connectRate", "2000"); /// new connections per second during ramp-up
+        DEFAULTS.put("settle", "3");         /// seconds after ramp-up before measuring (join notices drain)
+        DEFAULTS.put("duration", "30");      /// seconds of load
+        DEFAULTS.put("drain", "5");          /// seconds to wait for deliveries after the load stops
+        DEFAULTS.put("rate", "500");         /// operations per second across all connections
+        DEFAULTS.put("mix", "broadcast:70,msg:20,who:5,nick:4,sendfile:1");
+        DEFAULTS.put("payload", "64");       /// bytes of text per broadcast or private message
+        DEFAULTS.put("fileBytes", "4096");   /// size of each /sendfile upload
+    }
+
+    private enum Op { BROADCAST, MSG, WHO, NICK, SENDFILE }
+
+    private static final byte[] MARKER = "LG|".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USERS_REPLY = "Users online: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NICK_REPLY = "username has been changed to ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRIVATE_FROM = "Private from ".getBytes(StandardCharsets.UTF_8);
+
+    // ---- configuration ----
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int threads;
+    private final int connectRate;
+    private final int payloadBytes;
+    private final int fileBytes;
+    private final double rate;
+    private final Op[] mixTable = new Op[100]; /// op picked by a random index 0..99
+    private final String runId = Integer.toString(ThreadLocalRandom.current().nextInt(100_000, 1_000_000));
+
+    // ---- shared state ----
+    private final AtomicInteger connected = new AtomicInteger();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder[] sent = new LongAdder[Op.values().length];
+    private final LongAdder[] received = new LongAdder[Op.values().length];
+    private final LongAdder expectedBroadcastDeliveries = new LongAdder();
+    private final LongAdder rejected = new LongAdder(); /// "not found", "cannot message yourself", name taken
+    private final LongAdder bytesIn = new LongAdder();
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private volatile String[] names = new String[0]; /// targets for /msg and /sendfile, refreshed by every /who reply
+    private volatile boolean sending = false;
+    private volatile boolean running = true;
+
+    LoadGenerator(Map<String, String> options) {
+        host = options.get("host");
+        port = Integer.parseInt(options.get("port"));
+        clients = Integer.parseInt(options.get("clients"));
+        threads = Integer.parseInt(options.get("threads"));
+        connectRate = Integer.parseInt(options.get("connectRate"));
+        payloadBytes = Integer.parseInt(options.get("payload"));
+        fileBytes = Integer.parseInt(options.get("fileBytes"));
+        rate = Double.parseDouble(options.get("rate"));
+        int at = 0;
+        for (String part : options.get("mix").split(",")) {
+            String[] kv = part.split(":");
+            Op op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(kv[1].trim()); i > 0 && at < mixTable.length; i--) {
+                mixTable[at++] = op;
+            }
+        }
+        if (at == 0) {
+            throw new IllegalArgumentException("mix is empty");
+        }
+        for (int i = at; i < mixTable.length; i++) {
+            mixTable[i] = mixTable[i % at]; /// weights that don't add up to 100 are scaled
+        }
+        for (Op op : Op.values()) {
+            sent[op.ordinal()] = new LongAdder();
+            received[op.ordinal()] = new LongAdder();
+            latency[op.ordinal()] = new LatencyHistogram(op.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option '" + arg + "'. Options (key=value): " + DEFAULTS);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println("Load generator " + options);
+        new LoadGenerator(options).run(
+                Long.parseLong(options.get("settle")), Long.parseLong(options.get("duration")), Long.parseLong(options.get("drain")));
+        System.exit(0);
+    }
+
+    void run(long settleSeconds, long durationSeconds, long drainSeconds) throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int share = clients / threads + (t < clients % threads ? 1 : 0);
+            Worker worker = new Worker(t, share);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long rampStart = System.nanoTime();
+        while (connected.get() + connectFailures.intValue() < clients) {
+            Thread.sleep(200);
+            if (System.nanoTime() - rampStart > 120_000_000_000L) {
+                System.out.println("Ramp-up timed out");
+                break;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Connected %d/%d in %.1fs (%d failed), settling %ds%n", connected.get(), clients,
+                (System.nanoTime() - rampStart) / 1e9, connectFailures.sum(), settleSeconds);
+        Thread.sleep(settleSeconds * 1000);
+        workers.get(0).requestWho(); /// seeds the /msg and /sendfile target list
+
+        sending = true;
+        long start = System.nanoTime();
+        long[] lastSent = new long[1];
+        long[] lastReceived = new long[1];
+        for (long s = 1; s <= durationSeconds; s++) {
+            Thread.sleep(1000);
+            if (s % 5 == 0 || s == durationSeconds) {
+                long totalSent = total(sent);
+                long totalReceived = total(received);
+                System.out.printf(Locale.ROOT, "%4ds  sent %8d/s  delivered %9d/s  connected %d%n", s,
+                        (totalSent - lastSent[0]) / 5, (totalReceived - lastReceived[0]) / 5, connected.get());
+                lastSent[0] = totalSent;
+                lastReceived[0] = totalReceived;
+            }
+        }
+        sending = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(drainSeconds * 1000);
+        running = false;
+        report(seconds);
+    }
+
+    private static long total(LongAdder[] counters) {
+        long sum = 0;
+        for (LongAdder counter : counters) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Run %s: %.1fs, %d connections (%d dropped during the run)%n",
+                runId, seconds, connected.get(), disconnects.sum());
+        System.out.printf(Locale.ROOT, "Throughput: %.0f ops/s sent, %.0f deliveries/s, %.1f MB/s received%n",
+                total(sent) / seconds, total(received) / seconds, bytesIn.sum() / seconds / 1e6);
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-10s %10s %12s %12s %9s %9s %9s %9s%n",
+                "op", "sent", "delivered", "lost", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Op op : Op.values()) {
+            long opSent = sent[op.ordinal()].sum();
+            long opReceived = received[op.ordinal()].sum();
+            long expected = switch (op) {
+                case BROADCAST -> expectedBroadcastDeliveries.sum();
+                case MSG, SENDFILE, WHO, NICK -> opSent;
+            };
+            if (op == Op.MSG || op == Op.SENDFILE || op == Op.NICK) {
+                expected -= Math.min(expected, rejectedShare(op));
+            }
+            LatencyHistogram.Snapshot s = latency[op.ordinal()].snapshot();
+            System.out.printf(Locale.ROOT, "%-10s %10d %12d %12d %9.2f %9.2f %9.2f %9.2f%n",
+                    latency[op.ordinal()].getName(), opSent, opReceived, Math.max(0, expected - opReceived),
+                    s.percentile(0.5) / 1e6, s.percentile(0.99) / 1e6, s.percentile(0.999) / 1e6, s.max() / 1e6);
+        }
+        System.out.printf("Rejected by the server (unknown or own name, name taken): %d%n", rejected.sum());
+    }
+
+    /// Rejections are not attributed to an op on the wire; spread them over the ops that can be rejected
+    private long rejectedShare(Op op) {
+        long msg = sent[Op.MSG.ordinal()].sum();
+        long file = sent[Op.SENDFILE.ordinal()].sum();
+        long nick = sent[Op.NICK.ordinal()].sum();
+        long all = msg + file + nick;
+        if (all == 0) {
+            return 0;
+        }
+        return Math.round(rejected.sum() * (double) sent[op.ordinal()].sum() / all);
+    }
+
+    /// One client connection
+    private static final class Conn {
+        final SocketChannel channel;
+        final int index;
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long whoSentNanos;  /// 0 when no /who is outstanding
+        long nickSentNanos; /// 0 when no /nick is outstanding
+        int nickCounter;
+
+        Conn(SocketChannel channel, int index) {
+            this.channel = channel;
+            this.index = index;
+        }
+    }
+
+    /// One selector thread owning a share of the connections; it opens them, sends their operations and reads their input
+    private final class Worker implements Runnable {
+        final int id;
+        final int share;
+        final Selector selector;
+        final List<Conn> conns = new ArrayList<>();
+        volatile boolean whoRequested = false;
+
+        Worker(int id, int share) throws IOException {
+            this.id = id;
+            this.share = share;
+            this.selector = Selector.open();
+        }
+
+        void requestWho() {
+            whoRequested = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                System.err.println("load-" + id + " failed: " + e);
+            }
+        }
+
+        private void loop() throws IOException {
+            double ratePerThread = rate / threads;
+            double connectPerNano = connectRate / (double) threads / 1e9;
+            long startedNanos = System.nanoTime();
+            long lastTick = startedNanos;
+            double dueOps = 0;
+            int opened = 0;
+
+            while (running) {
+                selector.select(1);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+
+                long now = System.nanoTime();
+                /// ramp-up: open connections at connectRate
+                while (opened < share && opened < (now - startedNanos) * connectPerNano + 1) {
+                    open(opened++);
+                }
+                if (whoRequested && !conns.isEmpty()) {
+                    whoRequested = false;
+                    perform(conns.get(0), Op.WHO, now);
+                }
+                if (sending && !conns.isEmpty()) {
+                    dueOps += (now - lastTick) * ratePerThread / 1e9;
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (dueOps >= 1) {
+                        dueOps--;
+                        perform(conns.get(random.nextInt(conns.size())), mixTable[random.nextInt(mixTable.length)], now);
+                    }
+                } else {
+                    dueOps = 0;
+                }
+                lastTick = now;
+            }
+        }
+
+        private void open(int n) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Conn conn = new Conn(channel, id * 1_000_000 + n);
+                channel.register(selector, SelectionKey.OP_CONNECT, conn);
+                channel.connect(new InetSocketAddress(host, port));
+            } catch (IOException e) {
+                connectFailures.increment();
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Conn conn = (Conn) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    conn.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    conns.add(conn);
+                    connected.incrementAndGet();
+                    return;
+                }
+                if (key.isReadable()) {
+                    int n = conn.channel.read(conn.in);
+                    if (n < 0) {
+                        throw new IOException("closed by server");
+                    }
+                    bytesIn.add(n);
+                    parseLines(conn);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(conn, key);
+                }
+            } catch (IOException e) {
+                if (!conns.remove(conn)) {
+                    connectFailures.increment();
+                } else {
+                    connected.decrementAndGet();
+                    disconnects.increment();
+                }
+                key.cancel();
+                try {
+                    conn.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void perform(Conn conn, Op op, long now) {
+            String token = "LG|" + runId + "|" + op.name().charAt(0) + "|" + now + "|";
+            String[] targets = names;
+            switch (op) {
+                case BROADCAST -> {
+                    expectedBroadcastDeliveries.add(connected.get() - 1);
+                    queue(conn, pad(token, payloadBytes) + "\n");
+                }
+                case MSG -> {
+                    if (targets.length == 0) {
+                        return;
+                    }
+                    queue(conn, "/msg " + targets[ThreadLocalRandom.current().nextInt(targets.length)] + " " + pad(token, payloadBytes) + "\n");
+                }
+                case WHO -> {
+                    if (conn.whoSentNanos != 0) {
+                        return; /// one outstanding /who per connection, so replies can be matched
+                    }
+                    conn.whoSentNanos = now;
+                    queue(conn, "/who\n");
+                }
+                case NICK -> {
+                    if (conn.nickSentNanos != 0) {
+                        return;
+                    }
+                    conn.nickSentNanos = now;
+                    queue(conn, "/nick lg" + conn.index + "_" + conn.nickCounter++ + "\n");
+                }
+                case SENDFILE -> {
+                    if (targets.length == 0) {
+                        return;
+                    }
+                    String target = targets[ThreadLocalRandom.current().nextInt(targets.length)];
+                    /// The file is one text line with the token, so the recipient measures it like a message
+                    String body = pad(token, fileBytes - 1) + "\n";
+                    queue(conn, "/sendfile " + target + " lg" + conn.index + ".bin " + body.length() + "\n" + body);
+                }
+            }
+            sent[op.ordinal()].increment();
+        }
+
+        private String pad(String token, int length) {
+            if (token.length() >= length) {
+                return token;
+            }
+            return token + "x".repeat(length - token.length());
+        }
+
+        private void queue(Conn conn, String text) {
+            conn.out.addLast(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            SelectionKey key = conn.channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                flush(conn, key);
+            }
+        }
+
+        private void flush(Conn conn, SelectionKey key) {
+            try {
+                ByteBuffer head;
+                while ((head = conn.out.peekFirst()) != null) {
+                    conn.channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    conn.out.pollFirst();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                key.cancel();
+            }
+        }
+
+        // Splits the input on '\n' and looks at each line's bytes; only lines that matter are decoded
+        private void parseLines(Conn conn) {
+            ByteBuffer in = conn.in;
+            byte[] bytes = in.array();
+            int end = in.position();
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    onLine(conn, bytes, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0 && end == bytes.length) {
+                in.clear(); /// a line longer than the buffer (a big file): nothing to measure in it
+                return;
+            }
+            in.limit(end).position(lineStart);
+            in.compact();
+        }
+
+        private void onLine(Conn conn, byte[] b, int from, int to) {
+            long now = System.nanoTime();
+            int marker = indexOf(b, from, to, MARKER);
+            if (marker >= 0) {
+                onToken(b, marker + MARKER.length, to, now, indexOf(b, from, marker, PRIVATE_FROM) >= 0);
+                return;
+            }
+            int users = indexOf(b, from, to, USERS_REPLY);
+            if (users >= 0) {
+                String list = new String(b, users + USERS_REPLY.length, to - users - USERS_REPLY.length, StandardCharsets.UTF_8).trim();
+                names = list.isEmpty() ? new String[0] : list.replaceAll("@\\S+", "").split(", ");
+                if (conn.whoSentNanos != 0) {
+                    latency[Op.WHO.ordinal()].record(now - conn.whoSentNanos);
+                    received[Op.WHO.ordinal()].increment();
+                    conn.whoSentNanos = 0;
+                }
+                return;
+            }
+            if (conn.nickSentNanos != 0 && indexOf(b, from, to, NICK_REPLY) >= 0) {
+                latency[Op.NICK.ordinal()].record(now - conn.nickSentNanos);
+                received[Op.NICK.ordinal()].increment();
+                conn.nickSentNanos = 0;
+                return;
+            }
+            String line = null;
+            if (to - from < 200) {
+                line = new String(b, from, to - from, StandardCharsets.UTF_8);
+            }
+            if (line != null && (line.contains("not found") || line.contains("cannot message yourself") || line.contains("already taken"))) {
+                rejected.increment();
+                if (line.contains("already taken")) {
+                    conn.nickSentNanos = 0;
+                }
+            }
+        }
+
+        // Token after the marker: runId|type|nanos|...
+        private void onToken(byte[] b, int at, int to, long now, boolean privateFrom) {
+            int runEnd = indexOf(b, at, to, (byte) '|');
+            if (runEnd < 0 || runEnd + 2 >= to || !runId.equals(new String(b, at, runEnd - at, StandardCharsets.US_ASCII))) {
+                return; /// from another run, e.g. replayed history
+            }
+            char type = (char) b[runEnd + 1];
+            long nanos = 0;
+            for (int i = runEnd + 3; i < to && b[i] != '|'; i++) {
+                nanos = nanos * 10 + (b[i] - '0');
+            }
+            Op op = switch (type) {
+                case 'B' -> Op.BROADCAST;
+                case 'M' -> Op.MSG;
+                case 'S' -> Op.SENDFILE;
+                default -> null;
+            };
+            if (op == null || (op == Op.MSG && !privateFrom)) {
+                return; /// the "Private to" echo sent back to the sender
+            }
+            latency[op.ordinal()].record(now - nanos);
+            received[op.ordinal()].increment();
+        }
+
+        private int indexOf(byte[] b, int from, int to, byte[] needle) {
+            outer:
+            for (int i = from; i <= to - needle.length; i++) {
+                for (int j = 0; j < needle.length; j++) {
+                    if (b[i + j] != needle[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private int indexOf(byte[] b, int from, int to, byte needle) {
+            for (int i = from; i < to; i++) {
+                if (b[i] == needle) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package chat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Logger that never does I/O on the calling thread.
+ * <p>
+ * Callers append a record (level, time, thread, template and up to three arguments) into a bounded ring
+ * buffer; a background writer drains it in batches, formats the records and flushes once per batch.
+ * Messages are templates with {@code {}} placeholders, so nothing is concatenated or formatted on the
+ * event loop, and a call below the configured level returns before touching the buffer.
+ * <p>
+ * When the buffer is full the {@link Overflow} policy decides: {@code DROP} counts and discards the
+ * record (the count is written to the log later), {@code BLOCK} waits for the writer to catch up.
+ */
+public class AsyncLogger {
+
+    public enum Overflow { DROP, BLOCK }
+
+    /// One log call, formatted later on the writer thread
+    private static final class Record {
+        final Level level;
+        final long millis;
+        final String thread;
+        final String template;
+        final Object arg1;
+        final Object arg2;
+        final Object arg3;
+
+        Record(Level level, String template, Object arg1, Object arg2, Object arg3) {
+            this.level = level;
+            this.millis = System.currentTimeMillis();
+            this.thread = Thread.currentThread().getName();
+            this.template = template;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+        }
+    }
+
+    /// Put in the ring by close(): everything queued before it is written, then the writer stops
+    private static final Record SHUTDOWN = new Record(Level.OFF, "", null, null, null);
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd, yyyy h:mm:ss a", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final String name;
+    private final int threshold;
+    private final Overflow overflow;
+    private final int batchSize;
+    private final ArrayBlockingQueue<Record> ring;
+    private final BufferedWriter file;
+    private final PrintStream console; /// null when console echo is off
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public AsyncLogger(String name, Path file, Level level, int capacity, int batchSize, Overflow overflow,
+                       boolean console) throws IOException {
+        this.name = name;
+        this.threshold = level.intValue();
+        this.overflow = overflow;
+        this.batchSize = batchSize;
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.file = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.console = console ? System.err : null;
+        this.writer = new Thread(this::drainLoop, name + "-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-log-shutdown"));
+    }
+
+    /// Builds a logger from the {@code chat.log.*} system properties
+    public static AsyncLogger fromSystemProperties(String name) {
+        try {
+            return new AsyncLogger(name,
+                    Path.of(System.getProperty("chat.log.file", "chat-server.log")),
+                    Level.parse(System.getProperty("chat.log.level", "INFO")), ///INFO or FINE for more details
+                    Integer.getInteger("chat.log.queue", 8192),
+                    Integer.getInteger("chat.log.batch", 256),
+                    Overflow.valueOf(System.getProperty("chat.log.overflow", "drop").toUpperCase(Locale.ROOT)),
+                    Boolean.parseBoolean(System.getProperty("chat.log.console", "true")));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isLoggable(Level level) {
+        return level.intValue() >= threshold;
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, null, null);
+    }
+
+    public void info(String template, Object arg1) {
+        log(Level.INFO, template, arg1, null, null);
+    }
+
+    public void info(String template, Object arg1, Object arg2) {
+        log(Level.INFO, template, arg1, arg2, null);
+    }
+
+    public void info(String template, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, template, arg1, arg2, arg3);
+    }
+
+    public void fine(String template, Object arg1, Object arg2) {
+        log(Level.FINE, template, arg1, arg2, null);
+    }
+
+    public void severe(String message) {
+        log(Level.SEVERE, message, null, null, null);
+    }
+
+    public void severe(String template, Object arg1) {
+        log(Level.SEVERE, template, arg1, null, null);
+    }
+
+    public void severe(String template, Object arg1, Object arg2) {
+        log(Level.SEVERE, template, arg1, arg2, null);
+    }
+
+    public void log(Level level, String template, Object arg1, Object arg2, Object arg3) {
+        if (level.intValue() < threshold || closed) {
+            return; /// disabled level: no record, no formatting
+        }
+        Record record = new Record(level, template, arg1, arg2, arg3);
+        if (overflow == Overflow.DROP) {
+            if (!ring.offer(record)) {
+                dropped.increment();
+            }
+            return;
+        }
+        try {
+            ring.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.increment();
+        }
+    }
+
+    /// Records thrown away by the DROP policy since startup
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public int getQueuedCount() {
+        return ring.size();
+    }
+
+    /// Stops accepting records and writes out what is already buffered
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            /// Wake the writer through the ring, never with an interrupt: the file sits on an interruptible
+            /// channel, and an interrupt during a write would close it and lose the rest of the records
+            if (ring.offer(SHUTDOWN, 2, TimeUnit.SECONDS)) {
+                writer.join(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        List<Record> batch = new ArrayList<>(batchSize);
+        StringBuilder text = new StringBuilder(256);
+        long reportedDrops = 0;
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(ring.take()); /// sleep until there is something to write
+            } catch (InterruptedException e) {
+                continue; /// only close() stops the writer
+            }
+            ring.drainTo(batch, batchSize - 1);
+            stopping = closed && batch.remove(SHUTDOWN);
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                batch.add(new Record(Level.WARNING, "{} log records dropped so far (buffer full)", drops, null, null));
+                reportedDrops = drops;
+            }
+            writeBatch(batch, text);
+            batch.clear();
+        }
+
+        /// Shutting down: write out records that were already past the closed check when SHUTDOWN went in
+        ring.drainTo(batch);
+        writeBatch(batch, text);
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeBatch(List<Record> batch, StringBuilder text) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        text.setLength(0);
+        for (Record record : batch) {
+            format(record, text);
+        }
+        try {
+            file.append(text);
+            file.flush(); /// one flush per batch, not per line
+        } catch (IOException e) {
+            System.err.println(name + " log write failed: " + e.getMessage());
+        }
+        if (console != null) {
+            console.print(text);
+        }
+    }
+
+    // Same two-line layout SimpleFormatter used, with the thread in place of the calling method
+    private void format(Record record, StringBuilder out) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(record.millis), out);
+        out.append(' ').append(name).append(' ').append(record.thread).append(System.lineSeparator());
+        out.append(record.level.getName()).append(": ");
+
+        String template = record.template;
+        Object[] args = {record.arg1, record.arg2, record.arg3};
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while (argIndex < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at).append(args[argIndex++]);
+            from = at + 2;
+        }
+        out.append(template, from, template.length()).append(System.lineSeparator());
+    }
+}
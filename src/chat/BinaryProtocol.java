@@ -0,0 +1,160 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The length-prefixed binary protocol, for our own client tooling; telnet clients keep the text protocol.
+ * <p>
+ * A client asks for it by sending {@link #HANDSHAKE} as the very first bytes of the connection. The
+ * server answers with a {@link #HELLO} frame, and from then on both directions are frames:
+ * <pre>
+ *   u32 length   bytes that follow (type + body), big-endian
+ *   u8  type     one of the constants below
+ *   body         fields in order; a "str" is u16 length + UTF-8, the last field runs to the end of the frame
+ * </pre>
+ * Client to server:
+ * <pre>
+ *   CHAT        text                          plain chat for everyone, never parsed as a command
+ *   PRIVATE     str to, text                  same as /msg
+ *   COMMAND     line                          any text command, e.g. "/join #dev" or "#dev hi"
+ *   FILE_OFFER  str to, str name, u64 size    same as /sendfile; the data follows as FILE_CHUNK frames
+ *   FILE_CHUNK  data                          next part of the upload, chat frames may come in between
+ *   COMPRESS    u8 flags                      ask for compressed frames, see {@link FrameCompression}
+ *   PING                                      keepalive, ignored; like any frame it counts as activity
+ * </pre>
+ * Server to client:
+ * <pre>
+ *   HELLO       u8 version, u32 maxFrame, username   maxFrame is the largest frame the server accepts
+ *   CHAT        str scope, str from, text     scope is "" for the main chat or the room name
+ *   PRIVATE     str from, text
+ *   PRESENCE    str scope, str user, text     joins, leaves and renames
+ *   NOTICE      text                          replies to commands and errors
+ *   HISTORY     str scope, lines              replayed "from: text" lines, one per '\n'
+ *   FILE_OFFER  str from, str name, u64 size  a file is coming; FILE_CHUNK frames carry it
+ *   FILE_CHUNK  data
+ *   COMPRESS    u8 flags                      what the server will compress from now on
+ *   PING                                      heartbeat to a quiet client, needs no answer
+ * </pre>
+ * Either side may also send {@code DEFLATED: u8 innerType, deflated body} in place of any other frame,
+ * see {@link FrameCompression}; the server only does so after a COMPRESS request.
+ * Nothing sent in binary mode carries the ANSI color codes of the text protocol.
+ */
+public final class BinaryProtocol {
+
+    public static final int VERSION = 1;
+    /// First bytes of a binary connection; a telnet client never starts with a NUL byte
+    public static final byte[] HANDSHAKE = {0, 'C', 'H', 'B', VERSION};
+
+    public static final byte CHAT = 1;
+    public static final byte PRIVATE = 2;
+    public static final byte COMMAND = 3;
+    public static final byte PRESENCE = 4;
+    public static final byte FILE_OFFER = 5;
+    public static final byte FILE_CHUNK = 6;
+    public static final byte NOTICE = 7;
+    public static final byte HISTORY = 8;
+    public static final byte COMPRESS = 9;
+    public static final byte DEFLATED = 10;
+    public static final byte PING = 11;
+    public static final byte HELLO = 16;
+
+    public static final int HEADER_BYTES = 5; /// length + type
+
+    private BinaryProtocol() {
+    }
+
+    public static SharedPayload hello(String username, int maxFrameBytes, BufferPool pool) {
+        byte[] name = utf8(username);
+        ByteBuffer frame = allocate(1 + 4 + name.length, HELLO, pool);
+        frame.put((byte) VERSION).putInt(maxFrameBytes).put(name);
+        return finish(frame, pool);
+    }
+
+    public static SharedPayload ping(BufferPool pool) {
+        return finish(allocate(0, PING, pool), pool);
+    }
+
+    public static SharedPayload compress(int flags, BufferPool pool) {
+        ByteBuffer frame = allocate(1, COMPRESS, pool);
+        frame.put((byte) flags);
+        return finish(frame, pool);
+    }
+
+    public static SharedPayload chat(String scope, String from, String text, BufferPool pool) {
+        return encode(CHAT, pool, utf8(scope), utf8(from), utf8(text));
+    }
+
+    public static SharedPayload privateMessage(String from, String text, BufferPool pool) {
+        return encode(PRIVATE, pool, utf8(from), utf8(text));
+    }
+
+    public static SharedPayload presence(String scope, String user, String text, BufferPool pool) {
+        return encode(PRESENCE, pool, utf8(scope), utf8(user), utf8(Colors.strip(text).trim()));
+    }
+
+    public static SharedPayload notice(String text, BufferPool pool) {
+        return encode(NOTICE, pool, utf8(Colors.strip(text).strip()));
+    }
+
+    /// {@code lines} is copied, so the caller may reuse it
+    public static SharedPayload history(String scope, ByteBuffer lines, BufferPool pool) {
+        byte[] name = utf8(scope);
+        ByteBuffer frame = allocate(2 + name.length + lines.remaining(), HISTORY, pool);
+        frame.putShort((short) name.length).put(name).put(lines.duplicate());
+        return finish(frame, pool);
+    }
+
+    public static SharedPayload fileOffer(String from, String fileName, long size, BufferPool pool) {
+        byte[] sender = utf8(from);
+        byte[] name = utf8(fileName);
+        ByteBuffer frame = allocate(2 + sender.length + 2 + name.length + 8, FILE_OFFER, pool);
+        frame.putShort((short) sender.length).put(sender).putShort((short) name.length).put(name).putLong(size);
+        return finish(frame, pool);
+    }
+
+    /// Header of a FILE_CHUNK frame whose {@code dataBytes} of data follow straight from the file
+    public static void fileChunkHeader(ByteBuffer header, int dataBytes) {
+        header.clear();
+        header.putInt(1 + dataBytes).put(FILE_CHUNK).flip();
+    }
+
+    /// Every field but the last is u16-length-prefixed; the last runs to the end of the frame
+    private static SharedPayload encode(byte type, BufferPool pool, byte[]... fields) {
+        int body = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (i < fields.length - 1) {
+                if (fields[i].length > 0xFFFF) {
+                    throw new IllegalArgumentException("Field too long for a binary frame: " + fields[i].length + " bytes");
+                }
+                body += 2;
+            }
+            body += fields[i].length;
+        }
+        ByteBuffer frame = allocate(body, type, pool);
+        for (int i = 0; i < fields.length; i++) {
+            if (i < fields.length - 1) {
+                frame.putShort((short) fields[i].length);
+            }
+            frame.put(fields[i]);
+        }
+        return finish(frame, pool);
+    }
+
+    /// A pooled buffer when the frame fits one, with the header already written
+    private static ByteBuffer allocate(int bodyBytes, byte type, BufferPool pool) {
+        int size = HEADER_BYTES + bodyBytes;
+        ByteBuffer frame = size <= pool.getBufferSize() ? pool.acquire() : ByteBuffer.allocate(size);
+        return frame.putInt(1 + bodyBytes).put(type);
+    }
+
+    private static SharedPayload finish(ByteBuffer frame, BufferPool pool) {
+        frame.flip();
+        /// allocate() only falls back to the heap for frames larger than a pooled buffer
+        return frame.limit() <= pool.getBufferSize() ? SharedPayload.pooled(frame, pool) : SharedPayload.wrap(frame);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,48 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of equally sized {@link ByteBuffer}s.
+ * <p>
+ * Buffers are handed out when a connection opens and given back on disconnect, so the read path
+ * itself never allocates. At most {@code maxPooled} idle buffers are kept; anything beyond that is
+ * left to the GC. Safe to share between event loops.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isReadOnly()) {
+            return; /// not one of ours
+        }
+        buffer.clear();
+        free.offer(buffer); /// silently dropped when the pool is already full
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getIdleCount() {
+        return free.size();
+    }
+}
@@ -0,0 +1,1813 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+public class ChatServer {
+    /// port number for clients (-Dchat.port), so several nodes can run on one machine
+    private static final int port = Integer.getInteger("chat.port", 5050);
+
+    /// Async logger: the event loops only enqueue records, a background thread formats and writes them
+    /// Configured with -Dchat.log.* properties, see AsyncLogger.fromSystemProperties
+    static final AsyncLogger logger = AsyncLogger.fromSystemProperties("ChatServer");
+
+    /// Durable record of chat, private and presence events on mapped segment files (-Dchat.journal.*)
+    /// null unless -Dchat.journal=<dir> is set
+    private static final MessageJournal journal = MessageJournal.fromSystemProperties();
+    /// Private messages kept for users who are offline (-Dchat.mailbox.*); null unless -Dchat.mailbox.dir=<dir> is set
+    private static final MailboxStore mailboxes = MailboxStore.fromSystemProperties();
+    private static final DateTimeFormatter mailTime = DateTimeFormatter.ofPattern("MMM d HH:mm").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter journalTime = DateTimeFormatter.ofPattern("MMM d HH:mm:ss").withZone(ZoneId.systemDefault());
+
+
+    /// Who is online: name -> session; channel -> session is the SelectionKey attachment
+    static final SessionRegistry sessions = new SessionRegistry(); /// package-private for the benchmarks
+    /// Counters and latency histograms, read by /stats and over JMX as chat:type=Metrics
+    static final Metrics metrics = new Metrics(sessions);
+    /// Password for /admin, which unlocks /stats; admin commands are off when -Dchat.admin.secret is unset
+    private static final String adminSecret = System.getProperty("chat.admin.secret", "");
+    /// Room name -> member session ids, so room traffic only touches the room's members
+    /// Each room keeps its own recent lines (-Dchat.history.roomBytes, -Dchat.history.roomLines)
+    private static final RoomRegistry rooms = new RoomRegistry(
+            Integer.getInteger("chat.history.roomBytes", 64 * 1024),
+            Integer.getInteger("chat.history.roomLines", 200));
+    /// Recent chat lines as sent, replayed to new clients and paged with /history
+    private static final HistoryRing history = new HistoryRing(
+            Integer.getInteger("chat.history.bytes", 256 * 1024),
+            Integer.getInteger("chat.history.lines", 1000));
+    /// Peer links to the other servers of a cluster (-Dchat.cluster.*); standalone unless chat.cluster.port is set
+    private static final ClusterNode cluster = ClusterNode.fromSystemProperties(port);
+    private static final int historyReplayLines = Integer.getInteger("chat.history.replay", 20); /// lines sent on join
+    /// How much output may pile up for one client, and what to drop when it does (-Dchat.outbound.*, -Dchat.slow.*)
+    private static final SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.fromSystemProperties();
+    /// Let clients switch to the length-prefixed BinaryProtocol by sending its handshake first (-Dchat.binary=true)
+    private static final boolean binaryProtocol = Boolean.getBoolean("chat.binary");
+    /// How long a new connection has to send the handshake before it is treated as a telnet client
+    private static final int handshakeMillis = Integer.getInteger("chat.binary.handshakeMillis", 200);
+    /// Largest FILE_CHUNK frame when relaying a file to a binary client
+    private static final int fileChunkBytes = Integer.getInteger("chat.binary.fileChunkBytes", 64 * 1024);
+    /// Whether binary clients may ask for compressed frames (-Dchat.compress, see FrameCompression)
+    private static final boolean compressionAllowed = Boolean.parseBoolean(System.getProperty("chat.compress", "true"));
+    /// Threads for blocking work such as file writes (-Dchat.workers=platform|virtual)
+    /// null by default: everything runs on the event loops as before
+    private static final WorkerPool workers = WorkerPool.fromSystemProperties();
+    /// Close clients that sent nothing for this long (-Dchat.idle.timeoutMillis); 0 keeps them forever
+    /// A peer that vanished without a FIN is otherwise only noticed when a write to it fails
+    private static final long idleTimeoutNanos = Long.getLong("chat.idle.timeoutMillis", 0) * 1_000_000;
+    /// Ping clients that have been quiet this long (-Dchat.heartbeat.millis), so a dead peer makes a write fail; 0 is off
+    private static final long heartbeatNanos = Long.getLong("chat.heartbeat.millis", 0) * 1_000_000;
+    /// Per-client and server-wide limits on what clients send (-Dchat.rate.*, see RateLimiter)
+    private static final RateLimiter rateLimiter = RateLimiter.fromSystemProperties();
+    /// Join, leave and rename notices coalesced into one digest per window (-Dchat.presence.*, see PresenceDigest)
+    private static final PresenceDigest presence = PresenceDigest.fromSystemProperties();
+    /// Telnet "no operation", which telnet clients swallow without showing anything
+    private static final byte[] TELNET_NOP = {(byte) 0xFF, (byte) 0xF1};
+    private static AtomicInteger clientIdCounter = new AtomicInteger(1);
+    private static EventLoop[] eventLoops; /// worker reactors, see main()
+    private static final AtomicInteger nextLoopIndex = new AtomicInteger(); /// round-robin cursor, shared by the acceptor threads
+
+    /// Read buffers, one per connection; the buffer size is also the longest line we accept
+    private static final BufferPool readBufferPool = new BufferPool(
+            Integer.getInteger("chat.maxLineBytes", 8192),
+            Integer.getInteger("chat.readPool.size", 1024),
+            Boolean.getBoolean("chat.readPool.direct"));
+
+    /// Buffers for encoded outgoing lines; shared by all recipients of a broadcast and recycled after the last write
+    private static final BufferPool payloadPool = new BufferPool(
+            Integer.getInteger("chat.payloadBytes", 1024),
+            Integer.getInteger("chat.payloadPool.size", 4096),
+            false);
+
+    public static void main(String[] args) throws IOException {
+        int reactors = Integer.getInteger("chat.reactors", 1); /// number of worker event loops
+        boolean leastLoaded = "leastloaded".equalsIgnoreCase(System.getProperty("chat.balance", "roundrobin"));
+        ServerSocketChannel[] listeners = openListeners(Integer.getInteger("chat.listeners", 1));
+
+        logger.info("Chat server started on port {} with {} event loop(s){}", port, reactors,
+                (listeners.length > 1 ? ", " + listeners.length + " listeners" : "")
+                + (workers != null ? " and " + workers.describe() + " for blocking work" : ""));
+        seedHistoryFromJournal();
+        cluster.start();
+        metrics.registerMBean();
+
+        /// starting the worker loops that will own the client channels
+        eventLoops = new EventLoop[reactors];
+        for (int i = 0; i < reactors; i++) {
+            eventLoops[i] = new EventLoop("chat-loop-" + i);
+            eventLoops[i].start();
+        }
+
+        // Every extra listener gets an acceptor thread of its own; the main thread runs the first one
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            new Thread(() -> {
+                try {
+                    acceptLoop(listener, leastLoaded);
+                } catch (IOException e) {
+                    logger.severe("Listener stopped: {}", e.getMessage());
+                }
+            }, "chat-accept-" + i).start();
+        }
+        acceptLoop(listeners[0], leastLoaded);
+    }
+
+    // Method to open the listening sockets
+    // With -Dchat.listeners=N they all bind the port with SO_REUSEPORT and the kernel spreads
+    // new connections across them, so a reconnect storm is accepted by N threads at once
+    private static ServerSocketChannel[] openListeners(int count) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open(); /// creating server socket channel
+        if (count > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            logger.info("SO_REUSEPORT is not supported here, using a single listener");
+            count = 1;
+        }
+        ServerSocketChannel[] listeners = new ServerSocketChannel[Math.max(1, count)];
+        for (int i = 0; i < listeners.length; i++) {
+            ServerSocketChannel serverChannel = i == 0 ? first : ServerSocketChannel.open();
+            if (listeners.length > 1) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true); /// before bind, on every socket
+            }
+            serverChannel.bind(new InetSocketAddress(port)); /// binding to port
+            serverChannel.configureBlocking(false);/// non blocking mode
+            listeners[i] = serverChannel;
+        }
+        return listeners;
+    }
+
+    // Method to accept connections on one listening socket and hand them to the worker loops; never returns
+    private static void acceptLoop(ServerSocketChannel serverChannel, boolean leastLoaded) throws IOException {
+        Selector selector = Selector.open(); /// creating selector
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT); /// registering server for accepting
+
+        /*
+         * SELECTOR EXPLANATION:
+         *
+         * What is a Selector?
+         * A Selector is a key component of Java NIO (Non-blocking I/O) that allows a single thread to monitor multiple
+         * channels for I/O events. It acts as a multiplexer of SelectableChannel objects.
+         *
+         * How Selector works:
+         * 1. Channels register with a Selector for specific events they're interested in (like accept, read, write)
+         * 2. The Selector monitors all registered channels and identifies which ones are ready for operations
+         * 3. This enables efficient handling of multiple connections without dedicating a thread to each connection
+         *
+         * In this code:
+         * - We create a Selector with Selector.open()
+         * - We register our ServerSocketChannel with this Selector for OP_ACCEPT events
+         * - OP_ACCEPT means we're interested in accepting new client connections
+         * - When selector.select() is called, it blocks until at least one channel is ready for its registered operation
+         * - The Selector then provides a Set of SelectionKey objects representing the ready channels
+         *
+         * Benefits of using a Selector:
+         * - Scalability: Can handle thousands of connections with a single thread
+         * - Efficiency: Avoids thread creation/context switching overhead of the traditional thread-per-client model
+         * - Resource management: Uses fewer system resources compared to blocking I/O with multiple threads
+         *
+         * The acceptor loop (while(true) loop below) only accepts new connections (key.isAcceptable()).
+         * There is one per listening socket (-Dchat.listeners, default 1), each with its own Selector and thread.
+         * Each accepted channel is handed to one of the worker EventLoops (-Dchat.reactors, default 1), picked
+         * round-robin or by fewest connections (-Dchat.balance=roundrobin|leastloaded). Every worker has its
+         * own Selector and registers its clients for OP_READ events, so reading, handleMessage and writing
+         * for a client always happen on the same thread, and N workers keep N cores busy.
+         *
+         * Work for a client owned by a different loop (a broadcast line, a /msg) is passed through that loop's
+         * mailbox instead of touching its key directly; see send().
+         */
+
+// Acceptor loop that continuously hands new client connections to the worker loops
+        while (true) {
+            // Wait until there's at least one channel ready for I/O operations
+            // Returns 0 if no channels are ready, in which case we continue waiting
+            if (selector.select() == 0) continue;
+
+            // Get the set of keys that represent channels ready for operations
+            // Only the server channel is registered here, so these are new connections
+            Set<SelectionKey> selectedKeys = selector.selectedKeys();
+            var iterator = selectedKeys.iterator();
+
+            // Process each ready channel one by one
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                // Remove the current key from the set to prevent processing it again
+                // This is important because Selector doesn't remove keys automatically
+                iterator.remove();
+
+                // Check if this key represents a new connection request
+                if (key.isAcceptable()) {
+                    // Accept every connection waiting in the backlog, not just one per select()
+                    // (null once the backlog is empty, or another listener's accept took it)
+                    SocketChannel clientChannel;
+                    while ((clientChannel = serverChannel.accept()) != null) {
+                        // Configure the client channel to be non-blocking
+                        // This allows us to handle multiple clients without dedicated threads
+                        clientChannel.configureBlocking(false);
+
+                        // Hand the channel to a worker; registration has to happen on the worker's own thread
+                        EventLoop loop = nextLoop(leastLoaded);
+                        metrics.connectionsAccepted.increment();
+                        loop.connectionOpened();
+                        SocketChannel accepted = clientChannel;
+                        loop.execute(() -> onAccepted(loop, accepted));
+                    }
+                }
+            }
+        }
+
+    }
+
+    // Method to refill the main chat history from the journal tail, so a restart doesn't forget the conversation
+    private static void seedHistoryFromJournal() {
+        if (journal == null) {
+            return;
+        }
+        int lines = Integer.getInteger("chat.history.lines", 1000);
+        for (MessageJournal.Entry entry : journal.tail(lines, e -> e.type() == MessageJournal.Type.CHAT && e.scope().isEmpty())) {
+            /// Same "from: text" bytes broadcast() sends
+            SharedPayload payload = SharedPayload.encode(entry.from() + ": " + entry.text(), payloadPool);
+            history.record(payload);
+            payload.release();
+        }
+        logger.info("History seeded with {} line(s) from the journal", history.size());
+    }
+
+    // Method to journal one event, if the journal is enabled
+    private static void journal(MessageJournal.Type type, String from, String scope, String text) {
+        if (journal != null) {
+            journal.append(type, from, scope, text);
+        }
+    }
+
+    // Method to pick the worker loop for a new connection
+    private static EventLoop nextLoop(boolean leastLoaded) {
+        if (!leastLoaded) {
+            return eventLoops[Math.floorMod(nextLoopIndex.getAndIncrement(), eventLoops.length)];
+        }
+        EventLoop best = eventLoops[0];
+        for (EventLoop loop : eventLoops) {
+            if (loop.getConnectionCount() < best.getConnectionCount()) {
+                best = loop;
+            }
+        }
+        return best;
+    }
+
+    // Method to set up a freshly accepted client; runs on the worker loop that now owns the channel
+    private static void onAccepted(EventLoop loop, SocketChannel clientChannel) {
+        // Create a new ClientSession for this channel; it gets its name once it joins
+        // The session keeps the key so flush() can switch OP_WRITE on and off,
+        // and the loop so other threads know where to deliver messages for it
+        ClientSession session = new ClientSession(null);
+        try {
+            // Register this client channel with the worker's selector for READ operations
+            // This means we'll be notified when this client sends messages
+            // We also attach the session to the key, so every later event finds it without a lookup
+            SelectionKey clientKey = clientChannel.register(loop.getSelector(), SelectionKey.OP_READ, session);
+            session.setKey(clientKey);
+            session.setDecoder(new LineDecoder(readBufferPool.acquire()));
+            session.setLoop(loop);
+        } catch (IOException e) {
+            logger.severe("Failed to register a new connection: {}", e.getMessage());
+            loop.connectionClosed();
+            try {
+                clientChannel.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        if (!binaryProtocol) {
+            join(session, false);
+            return;
+        }
+        // A binary client sends its handshake right away; telnet clients are greeted once it's clear they won't
+        loop.schedule(handshakeMillis, () -> {
+            if (session.getKey().isValid() && !session.isJoined()) {
+                join(session, false);
+            }
+        });
+    }
+
+    // Method to decide the protocol from the first bytes a new connection sent
+    // Returns false while the handshake is still incomplete
+    private static boolean negotiate(ClientSession session) {
+        LineDecoder decoder = session.getDecoder();
+        byte[] handshake = BinaryProtocol.HANDSHAKE;
+        if (decoder.buffered() == 0) {
+            return false;
+        }
+        if (decoder.peek(0) != handshake[0]) {
+            join(session, false); /// a telnet client typed before the handshake window ran out
+            return true;
+        }
+        if (decoder.buffered() < handshake.length) {
+            return false;
+        }
+        for (int i = 1; i < handshake.length; i++) {
+            if (decoder.peek(i) != handshake[i]) {
+                logger.info("Unknown protocol handshake from {}, closing", session.getChannel().socket().getRemoteSocketAddress());
+                disconnect(session);
+                return false;
+            }
+        }
+        decoder.skip(handshake.length);
+        session.setFrameDecoder(decoder.switchToFrames());
+        session.setDecoder(null);
+        join(session, true);
+        return true;
+    }
+
+    // Method to give a connection whose protocol is settled a name, announce it and catch it up on the chat
+    private static void join(ClientSession session, boolean binary) {
+        session.setBinary(binary);
+        session.setJoined(true);
+        session.setRateBuckets(rateLimiter.newClientBuckets());
+
+        // Generate a unique temporary ID for the new client
+        // Format: "User1", "User2", etc.
+        // Someone may already have taken that name with /nick, so keep counting until the registry accepts one
+        // A name held by a user on another node counts as taken too
+        session.setUsername("User" + clientIdCounter.getAndIncrement());
+        while (cluster.isRemoteUser(session.getUsername()) || !sessions.register(session)) {
+            session.setUsername("User" + clientIdCounter.getAndIncrement());
+        }
+        String clientId = session.getUsername();
+        cluster.userJoined(clientId);
+
+        // Log the new connection with client's address information
+        logger.info("{} has joined the chat from {}{}", clientId,
+                session.getChannel().socket().getRemoteSocketAddress(), binary ? " (binary)" : "");
+
+        journal(MessageJournal.Type.PRESENCE, clientId, "", "joined");
+
+        if (binary) {
+            /// first frame: the protocol version, the largest frame we accept and the name we picked
+            send(session, BinaryProtocol.hello(clientId, session.getFrameDecoder().getMaxFrameBytes(), payloadPool), MessageKind.DIRECT);
+        }
+
+        // Catch the newcomer up on what was said before they connected
+        replayHistory(session, history, "", historyReplayLines);
+        if (mailboxes != null && mailboxes.hasMail(clientId)) {
+            offload(session, () -> deliverMail(session, clientId));
+        }
+
+        if (idleTimeoutNanos > 0 || heartbeatNanos > 0) {
+            session.setLastReadNanos(System.nanoTime());
+            armIdleTimer(session, idleTimeoutNanos > 0 && heartbeatNanos > 0
+                    ? Math.min(idleTimeoutNanos, heartbeatNanos) : Math.max(idleTimeoutNanos, heartbeatNanos));
+        }
+
+        // Announce to all other clients that someone new has joined
+        // (peers learn it from cluster.userJoined() above and announce it to their own clients)
+        announce(new PresenceDigest.Event(PresenceDigest.Type.JOINED, session, clientId, null));
+    }
+
+    // Method to tell this node's clients that a user joined, left or was renamed
+    // Within chat.presence.windowMillis of each other, events go out together as one digest line
+    private static void announce(PresenceDigest.Event event) {
+        if (!presence.isEnabled()) {
+            broadcastLocal(event.session(), event.name(), presenceMessage(event), MessageKind.PRESENCE);
+            return;
+        }
+        EventLoop[] loops = eventLoops;
+        if (loops == null) {
+            return; /// a peer's user, before our loops exist: there is nobody here to tell
+        }
+        if (presence.add(event)) {
+            /// first event of a window; any loop can flush it, the fan-out reaches every loop anyway
+            EventLoop loop = loops[0];
+            if (loop.inEventLoop()) {
+                loop.schedule(presence.getWindowMillis(), ChatServer::flushPresence); /// mail to ourselves would wait for the next select()
+            } else {
+                loop.execute(() -> loop.schedule(presence.getWindowMillis(), ChatServer::flushPresence));
+            }
+        }
+    }
+
+    // Method run on a timer at the end of each presence window; sends what happened in it
+    private static void flushPresence() {
+        List<PresenceDigest.Event> window = presence.drain();
+        if (window.size() == 1) {
+            /// a single event looks as it always did, and its subject doesn't hear about itself
+            PresenceDigest.Event event = window.get(0);
+            broadcastLocal(event.session(), event.name(), presenceMessage(event), MessageKind.PRESENCE);
+        } else if (!window.isEmpty()) {
+            String digest = presence.format(window);
+            SharedPayload payload = SharedPayload.encode(Colors.YELLOW.getCode() + digest + Colors.RESET.getCode(), payloadPool);
+            fanOut(null, new Fanout(payload, "", "", digest, MessageKind.PRESENCE));
+        }
+    }
+
+    // Method to word one presence event the way it reads when sent on its own
+    private static String presenceMessage(PresenceDigest.Event event) {
+        return switch (event.type()) {
+            case JOINED -> event.name() + Colors.YELLOW.getCode() + " has joined the chat";
+            case LEFT -> " has left the chat 👋" + Colors.CYAN.getCode();
+            case RENAMED -> Colors.YELLOW.getCode() + event.name() + " is now known as " + event.newName() + Colors.RESET.getCode();
+        };
+    }
+
+    // Method called by a cluster link thread when a user on a peer joined, left or was renamed
+    static void onPeerPresence(PresenceDigest.Type type, String name, String newName) {
+        announce(new PresenceDigest.Event(type, null, name, newName));
+    }
+
+    // Method called by a cluster link thread when a peer forwards a broadcast; fans it out to our own clients
+    static void onPeerBroadcast(String fromUser, String message, MessageKind kind) {
+        broadcastLocal(null, fromUser, message, kind);
+    }
+
+    // Method called by a cluster link thread when a peer forwards a private message for one of our users
+    static void onPeerPrivate(String fromUser, String recipient, String privateMessage) {
+        ClientSession recipientSession = sessions.get(recipient);
+        if (recipientSession != null) {
+            sendPrivate(recipientSession, fromUser, privateMessage);
+        }
+    }
+
+    // Method called by a cluster link thread when a peer took the same name at the same time and won the tie-break
+    static void onPeerNameConflict(String name) {
+        ClientSession session = sessions.get(name);
+        if (session == null) {
+            return;
+        }
+        session.getLoop().execute(() -> {
+            String newName = name + "_" + cluster.getNodeName();
+            if (!session.getKey().isValid() || !session.getUsername().equals(name)) {
+                return;
+            }
+            while (cluster.isRemoteUser(newName) || !sessions.rename(session, newName)) {
+                newName = name + "_" + clientIdCounter.getAndIncrement();
+            }
+            cluster.userRenamed(name, newName);
+            logger.info("{} renamed to {}: the name was taken on another node", name, newName);
+            announce(new PresenceDigest.Event(PresenceDigest.Type.RENAMED, session, name, newName));
+            send(session, Colors.PURPLE.getCode() + "👤 '" + name + "' is taken on another server, you are now " + newName + Colors.RESET.getCode());
+        });
+    }
+
+    // Method to list the users connected to this node, for the USERS snapshot sent to a peer
+    static Collection<String> localUserNames() {
+        List<String> names = new ArrayList<>();
+        for (ClientSession session : sessions.sessions()) {
+            names.add(session.getUsername());
+        }
+        return names;
+    }
+
+    // Method to send a client the page of history just before their cursor for one scope ("" or a room name)
+    // Returns the number of lines sent
+    private static int replayHistory(ClientSession session, HistoryRing ring, String scope, int lines) {
+        Long cursor = session.getHistoryCursors().get(scope);
+        HistoryRing.Page page = ring.page(cursor == null ? ring.nextSeq() : cursor, lines);
+        session.getHistoryCursors().put(scope, page.firstSeq());
+        if (page.count() > 0 && session.isBinary()) {
+            send(session, forClient(session, BinaryProtocol.history(scope, page.lines(), payloadPool)), MessageKind.DIRECT);
+        } else if (page.count() > 0) {
+            send(session, Colors.CYAN.getCode() + "📜 " + (cursor == null ? "Recent" : "Older") + " messages"
+                    + (scope.isEmpty() ? "" : " in " + scope) + ":" + Colors.RESET.getCode());
+            // The ring holds the exact bytes that were sent, so the replay is one buffer, no re-encoding
+            send(session, SharedPayload.wrap(page.lines()), MessageKind.DIRECT);
+        }
+        return page.count();
+    }
+
+    // Method to read from a client whose channel has data; called by the owning EventLoop
+    static void onReadable(SelectionKey key) {
+        /*
+        * Code Part
+        Purpose
+key.isReadable()
+Check if client sent something
+decoder.readFrom(clientChannel)
+Read bytes from client into the session's pooled buffer
+bytesRead == -1
+Detect graceful disconnection
+decoder.nextLine()
+Take the next complete '\n'-terminated line, if any, as a view into the buffer
+handleMessage(...)
+Dispatch the command word to its handler, or broadcast the line as chat
+
+        *
+        * */
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        ClientSession clientSession = (ClientSession) key.attachment(); ///Get session attached to this client's key
+        if (clientSession.isParked()) {
+            return; /// ready in the same select() that parked it; the bytes wait in the socket until it is back
+        }
+        if (clientSession.isBinary()) {
+            readFrames(clientSession);
+            return;
+        }
+        LineDecoder decoder = clientSession.getDecoder(); /// pooled buffer that keeps partial lines between reads
+
+        int bytesRead; /// reading from client
+        try {
+            bytesRead = decoder.readFrom(clientChannel); /// reading from client into the session's buffer
+        } catch (IOException e) {
+            disconnect(clientSession);
+            return;
+        }
+
+        if (bytesRead == -1) {
+            disconnect(clientSession);///want to disconnect that channel
+            return;
+        }
+        metrics.bytesIn.add(bytesRead);
+        clientSession.setLastReadNanos(System.nanoTime());
+
+        // The first bytes of a connection say which protocol it speaks, when binary is enabled
+        if (!clientSession.isJoined()) {
+            if (!negotiate(clientSession)) {
+                return; /// handshake not complete yet
+            }
+            if (clientSession.isBinary()) {
+                decodeFrames(clientSession); /// frames sent right behind the handshake
+                return;
+            }
+        }
+        processLines(clientSession);
+    }
+
+    // Method to handle every complete line in a text client's read buffer
+    // Stops early when a line or an upload chunk was handed to a worker; it picks up again when that is done
+    private static void processLines(ClientSession clientSession) {
+        SelectionKey key = clientSession.getKey();
+        LineDecoder decoder = clientSession.getDecoder();
+
+        // One read can carry several lines, half a line, or the end of a command followed by file data,
+        // so keep taking complete frames until the buffer only holds a partial line
+        while (key.isValid() && !clientSession.isCloseAfterFlush() && !clientSession.isParked()) {
+            if (clientSession.isSendingFile()) {
+                /// If this client is currently sending a file, the bytes after the /sendfile line are file data
+                if (!receiveFileBytes(clientSession)) {
+                    return; /// waiting for the rest of the file
+                }
+                continue;
+            }
+
+            CommandLine line = decoder.nextLine();
+            if (decoder.pollOverflow()) {
+                send(clientSession, Colors.RED.getCode() + "❌ Line too long (max " + decoder.getMaxLineBytes() + " bytes), message dropped.");
+            }
+            if (line == null) {
+                return; /// only a partial line left, wait for more bytes
+            }
+
+            if (!line.isEmpty()) {
+                long started = System.nanoTime();
+                handleMessage(clientSession, line);
+                metrics.messagesIn.increment();
+                metrics.handleMessage.recordSince(started);
+            }
+        }
+    }
+
+    // Method to read from a client that speaks the binary protocol
+    private static void readFrames(ClientSession clientSession) {
+        int bytesRead;
+        try {
+            bytesRead = clientSession.getFrameDecoder().readFrom(clientSession.getChannel());
+        } catch (IOException e) {
+            disconnect(clientSession);
+            return;
+        }
+        if (bytesRead == -1) {
+            disconnect(clientSession);
+            return;
+        }
+        metrics.bytesIn.add(bytesRead);
+        clientSession.setLastReadNanos(System.nanoTime());
+        decodeFrames(clientSession);
+    }
+
+    // Method to handle every complete frame in a binary client's read buffer
+    // Framing is exact, so file chunks and chat can arrive in any order
+    private static void decodeFrames(ClientSession clientSession) {
+        FrameDecoder frames = clientSession.getFrameDecoder();
+        try {
+            while (clientSession.getKey().isValid() && !clientSession.isCloseAfterFlush()
+                    && !clientSession.isParked() && frames.next()) {
+                long started = System.nanoTime();
+                handleFrame(clientSession, frames);
+                metrics.messagesIn.increment();
+                metrics.handleMessage.recordSince(started);
+            }
+        } catch (ProtocolException e) {
+            /// the stream can't be trusted past a bad frame, so there is no way to carry on
+            logger.info("{} sent a bad frame, closing: {}", clientSession.getUsername(), e.getMessage());
+            disconnect(clientSession);
+        }
+    }
+
+    private static void handleFrame(ClientSession sender, FrameDecoder frame) throws ProtocolException {
+        switch (frame.type()) {
+            case BinaryProtocol.CHAT -> {
+                CommandLine text = frame.rest();
+                if (!text.isEmpty() && admit(sender, RateLimiter.Kind.BROADCAST, text.length())) {
+                    chatMessage(sender, text); /// never parsed as a command, even if it starts with '/'
+                }
+            }
+            case BinaryProtocol.PRIVATE -> {
+                String recipient = frame.readString();
+                CommandLine text = frame.rest();
+                if (text.isEmpty()) {
+                    send(sender, Colors.RED.getCode() + "❌ Empty private message");
+                } else if (admit(sender, RateLimiter.Kind.PRIVATE, text.length())) {
+                    sendPrivateMessage(sender, recipient, text.line());
+                }
+            }
+            case BinaryProtocol.COMMAND -> {
+                CommandLine line = frame.rest();
+                if (!line.isEmpty()) {
+                    handleMessage(sender, line);
+                }
+            }
+            case BinaryProtocol.FILE_OFFER -> {
+                String receiver = frame.readString();
+                String fileName = frame.readString();
+                long size = frame.readLong();
+                throttleUpload(sender, 1, 0); /// delayed, never dropped: its chunks follow right behind it
+                startFileUpload(sender, receiver, fileName, size);
+            }
+            case BinaryProtocol.FILE_CHUNK -> receiveFileChunk(sender, frame);
+            case BinaryProtocol.COMPRESS -> {
+                /// answered with what we will actually do, which is nothing when compression is off
+                int flags = compressionAllowed ? frame.readByte() & (FrameCompression.CHAT | FrameCompression.FILES) : 0;
+                sender.setCompression(flags);
+                send(sender, BinaryProtocol.compress(flags, payloadPool), MessageKind.DIRECT);
+            }
+            case BinaryProtocol.DEFLATED -> handleDeflatedFrame(sender, frame);
+            case BinaryProtocol.PING -> {
+                /// keepalive, the read already counted as activity
+            }
+            default -> throw new ProtocolException("Unknown frame type " + frame.type());
+        }
+    }
+
+    // Method to inflate a compressed frame from a binary client and handle the frame inside it
+    private static void handleDeflatedFrame(ClientSession sender, FrameDecoder frame) throws ProtocolException {
+        byte innerType = frame.readByte();
+        if (!compressionAllowed || innerType == BinaryProtocol.DEFLATED) {
+            throw new ProtocolException("Unexpected compressed frame");
+        }
+        // Inflated into a spare read buffer, so the inner frame has the same size limit as any other
+        ByteBuffer inflated = readBufferPool.acquire();
+        try {
+            FrameCompression.inflate(innerType, frame.restBuffer(), inflated);
+            FrameDecoder inner = new FrameDecoder(inflated, 0);
+            inner.next();
+            handleFrame(sender, inner);
+        } finally {
+            readBufferPool.release(inflated);
+        }
+    }
+
+    // Method to spool one FILE_CHUNK frame of a binary upload
+    private static void receiveFileChunk(ClientSession clientSession, FrameDecoder frame) throws ProtocolException {
+        if (!clientSession.isSendingFile()) {
+            throw new ProtocolException("File chunk without a file offer");
+        }
+        long remaining = clientSession.getFileSize() - clientSession.getFileBytesReceived();
+        if (frame.remaining() > remaining) {
+            throw new ProtocolException("File chunk past the announced size");
+        }
+        int chunk = frame.remaining();
+        throttleUpload(clientSession, 0, chunk);
+        if (workers != null) {
+            /// copied, the frame is gone (and an inflated one back in the pool) by the time a worker gets to it
+            ByteBuffer data = ByteBuffer.allocate(chunk).put(frame.restBuffer()).flip();
+            offload(clientSession, () -> spoolFileChunk(clientSession, data));
+            return;
+        }
+        spoolFileChunk(clientSession, frame.restBuffer());
+    }
+
+    // Method to write one chunk of a binary upload to its spool and relay the file once it is complete
+    private static void spoolFileChunk(ClientSession clientSession, ByteBuffer data) {
+        int chunk = data.remaining();
+        FileChannel spool = clientSession.getFileSpool();
+        if (spool != null) {
+            try {
+                while (data.hasRemaining()) {
+                    spool.write(data);
+                }
+            } catch (IOException e) {
+                logger.severe("❌ Failed to save file: {}", e.getMessage());
+                closeFileSpool(clientSession); /// keep counting the chunks, the upload ends as not saved
+            }
+        }
+        clientSession.setFileBytesReceived(clientSession.getFileBytesReceived() + chunk);
+        if (clientSession.getFileBytesReceived() == clientSession.getFileSize()) {
+            finishFileUpload(clientSession);
+        }
+    }
+
+    // Method to stream buffered upload bytes into the file being received
+    // Returns true once the whole file has arrived, false while more bytes are expected
+    private static boolean receiveFileBytes(ClientSession clientSession) {
+        long remaining = clientSession.getFileSize() - clientSession.getFileBytesReceived();
+        throttleUpload(clientSession, 0, Math.min(clientSession.getDecoder().buffered(), remaining));
+        if (workers != null) {
+            if (clientSession.getDecoder().buffered() > 0) {
+                /// the read buffer is left alone while the session is parked, so the worker can drain it in place
+                offload(clientSession, () -> spoolFileBytes(clientSession));
+            }
+            return false; /// processLines() carries on once the worker is done
+        }
+        return spoolFileBytes(clientSession);
+    }
+
+    // Method to move buffered upload bytes to the spool, relaying the file once it is complete
+    private static boolean spoolFileBytes(ClientSession clientSession) {
+        LineDecoder decoder = clientSession.getDecoder();
+        FileChannel spool = clientSession.getFileSpool();
+        long remaining = clientSession.getFileSize() - clientSession.getFileBytesReceived();
+
+        // Each chunk goes straight from the read buffer to disk, so heap use stays flat whatever the file size
+        // If the spool already failed, keep consuming the upload so it isn't parsed as chat
+        long consumed;
+        try {
+            consumed = spool != null ? decoder.drainTo(spool, remaining) : decoder.skip(remaining);
+        } catch (IOException e) {
+            logger.severe("❌ Failed to save file: {}", e.getMessage());
+            closeFileSpool(clientSession);
+            consumed = decoder.skip(remaining);
+        }
+        clientSession.setFileBytesReceived(clientSession.getFileBytesReceived() + consumed);
+
+        // Check if file is fully received
+        if (clientSession.getFileBytesReceived() < clientSession.getFileSize()) {
+            return false;
+        }
+        finishFileUpload(clientSession);
+        return true;
+    }
+
+    // Method to relay a completely received upload, whichever protocol it came in on
+    private static void finishFileUpload(ClientSession clientSession) {
+        clientSession.setSendingFile(false);
+
+        if (clientSession.getFileSpool() == null) {
+            send(clientSession, Colors.RED.getCode() + "❌ File '" + clientSession.getFileName() + "' could not be saved");
+            return;
+        }
+        closeFileSpool(clientSession);
+        Path savedFile = spoolPath(clientSession.getFileName());
+        logger.info("📁 File saved to disk as: {}", savedFile);
+
+        // Forward file to recipient
+        // The relay reads from the saved file with transferTo as the recipient's socket drains
+        ClientSession recipient = sessions.get(clientSession.getFileReceipient());
+        if (recipient != null) {
+            if (recipient.isBinary()) {
+                send(recipient, forClient(recipient, BinaryProtocol.fileOffer(clientSession.getUsername(),
+                        clientSession.getFileName(), clientSession.getFileSize(), payloadPool)), MessageKind.DIRECT);
+            } else {
+                send(recipient, Colors.ORANGE.getCode() + "📥 You received file '" + clientSession.getFileName() + "' from " + clientSession.getUsername());
+            }
+            try {
+                sendFile(recipient, FileChannel.open(savedFile, StandardOpenOption.READ), clientSession.getFileSize());
+            } catch (IOException e) {
+                logger.severe("❌ Failed to open file for relay: {}", e.getMessage());
+            }
+        }
+
+        send(clientSession, Colors.GREEN.getCode() + "✅ File '" + clientSession.getFileName() + "' sent successfully");
+    }
+
+    // Method to run blocking work for a client on a worker thread, when -Dchat.workers is set
+    // The client is parked until the work is done: nothing more is read from it, so its messages
+    // keep their order, and replies sent by the work reach its queue before anything after it
+    private static void offload(ClientSession session, Runnable work) {
+        if (workers == null) {
+            work.run();
+            return;
+        }
+        park(session);
+        workers.execute(() -> {
+            long started = System.nanoTime();
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                logger.severe("Blocking work for {} failed: {}", session.getUsername(), e.getMessage());
+            }
+            metrics.blockingWork.recordSince(started);
+            session.getLoop().execute(() -> unpark(session)); /// the loop's mailbox is the completion queue
+        });
+    }
+
+    // Method to stop reading from a client until a matching unpark()
+    private static void park(ClientSession session) {
+        session.park();
+        SelectionKey key = session.getKey();
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // Method to pick a client up again on its loop once its blocking work is done or its rate-limit wait is over
+    private static void unpark(ClientSession session) {
+        if (!session.unpark()) {
+            return; /// still held for another reason
+        }
+        session.setLastReadNanos(System.nanoTime()); /// time spent parked doesn't count as idle
+        SelectionKey key = session.getKey();
+        if (!key.isValid()) {
+            releaseReadBuffer(session); /// disconnect() left these to us while a worker might hold them
+            closeFileSpool(session);
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        // Lines or frames that arrived behind the offloaded one are already buffered, and no read may come for them
+        if (session.isBinary()) {
+            decodeFrames(session);
+        } else {
+            processLines(session);
+        }
+    }
+
+    // Method to give a client's read buffer back to the pool
+    private static void releaseReadBuffer(ClientSession session) {
+        if (session.getFrameDecoder() != null) {
+            session.getFrameDecoder().release(readBufferPool);
+        } else {
+            session.getDecoder().release(readBufferPool);
+        }
+    }
+
+    // Method to schedule a client's next idle check on its loop's timing wheel
+    private static void armIdleTimer(ClientSession session, long delayNanos) {
+        long delayMillis = (delayNanos + 999_999) / 1_000_000;
+        session.setIdleTimer(session.getLoop().schedule(delayMillis, () -> checkIdle(session)));
+    }
+
+    // Method run off the timing wheel: close a client that went quiet for too long, or ping it
+    // Reads only stamp lastReadNanos, so a busy client costs nothing here; the check re-arms itself
+    // for whenever the client could next become due
+    private static void checkIdle(ClientSession session) {
+        session.setIdleTimer(null);
+        if (!session.getKey().isValid()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long quiet = session.isParked() ? 0 : now - session.getLastReadNanos();
+        long next = Long.MAX_VALUE;
+        if (idleTimeoutNanos > 0) {
+            if (quiet >= idleTimeoutNanos) {
+                logger.info("{} sent nothing for {} ms, closing", session.getUsername(), quiet / 1_000_000);
+                metrics.idleDisconnects.increment();
+                disconnect(session);
+                return;
+            }
+            next = idleTimeoutNanos - quiet;
+        }
+        if (heartbeatNanos > 0) {
+            long sincePing = Math.min(quiet, now - session.getLastPingNanos());
+            if (sincePing >= heartbeatNanos) {
+                ping(session);
+                sincePing = 0;
+            }
+            next = Math.min(next, heartbeatNanos - sincePing);
+        }
+        armIdleTimer(session, next);
+    }
+
+    // Method to send a heartbeat; a client with output still queued needs none, that write will fail first
+    private static void ping(ClientSession session) {
+        session.setLastPingNanos(System.nanoTime());
+        if (session.getOutbound().getQueuedBytes() > 0) {
+            return;
+        }
+        metrics.heartbeats.increment();
+        send(session, session.isBinary() ? BinaryProtocol.ping(payloadPool)
+                : SharedPayload.wrap(ByteBuffer.wrap(TELNET_NOP)), MessageKind.DIRECT);
+    }
+
+    // Method to get the on-disk location of a received file
+    private static Path spoolPath(String fileName) {
+        return Path.of("received_" + fileName);
+    }
+
+    // Method to close a session's upload spool, if one is open
+    private static void closeFileSpool(ClientSession session) {
+        FileChannel spool = session.getFileSpool();
+        if (spool == null) {
+            return;
+        }
+        session.setFileSpool(null);
+        try {
+            spool.close();
+        } catch (IOException e) {
+            logger.severe("❌ Failed to close file: {}", e.getMessage());
+        }
+    }
+
+    // Method called by the owning EventLoop when a client's socket can take more bytes
+    static void onWritable(SelectionKey key) {
+        flush((ClientSession) key.attachment());
+    }
+
+    // Method called by the owning EventLoop at the end of an iteration in which the client got output
+    static void flushPending(ClientSession session) {
+        if (session.getKey().isValid()) {
+            flush(session);
+        }
+    }
+
+    // Method to drain a client's outbound queue; OP_WRITE is only asked for while the socket is full
+    private static void flush(ClientSession session) {
+        SelectionKey key = session.getKey();
+        try {
+            int ops = key.interestOps();
+            if (session.getOutbound().flush(session.getChannel())) {
+                /// Nothing left: stop asking for OP_WRITE, otherwise select() spins on an always-writable socket
+                if ((ops & SelectionKey.OP_WRITE) != 0) {
+                    key.interestOps(ops & ~SelectionKey.OP_WRITE);
+                }
+                if (session.isCloseAfterFlush()) {
+                    disconnect(session);
+                }
+            } else if ((ops & SelectionKey.OP_WRITE) == 0) {
+                key.interestOps(ops | SelectionKey.OP_WRITE); /// kernel buffer is full, go on when it drains
+            }
+        } catch (IOException e) {
+            disconnect(session);
+        }
+    }
+
+    // Method to send a message to all clients except the sender, on this node and on every peer
+    // Join/leave notices and /nick announcements go through announce() instead
+    static void broadcast(ClientSession sender, String fromUser, String message, MessageKind kind) {
+        broadcastLocal(sender, fromUser, message, kind);
+        cluster.broadcast(fromUser, message, kind); /// one frame per peer, each peer does its own fan-out
+    }
+
+    // Method to send a message to this node's clients except the sender
+    private static void broadcastLocal(ClientSession sender, String fromUser, String message, MessageKind kind) {
+        // Format the message as "fromUser: message" and encode it to bytes once;
+        // every recipient gets a read-only view of the same payload instead of its own copy
+        SharedPayload payload = SharedPayload.encode(fromUser + ": " + message, payloadPool);
+        if (kind == MessageKind.CHAT) {
+            history.record(payload); /// copied into the ring's arena, nothing allocated
+        }
+        fanOut(sender, new Fanout(payload, "", fromUser, message, kind));
+    }
+
+    // Method to hand one line to every client of this node except the sender, then drop the caller's references
+    private static void fanOut(ClientSession sender, Fanout fanout) {
+        // Iterate through all sessions in the registry
+        int recipients = 0;
+        for (ClientSession client : sessions.sessions()) {
+            // Skip sending the message back to the original sender
+            // (compared by identity, so a rename in flight can't echo a line back)
+            if (client != sender) {
+                // Send the message to each other client
+                // Each queued view holds its own reference, released once it has been written
+                send(client, fanout.payloadFor(client).retain(), fanout.kind);
+                recipients++;
+            }
+        }
+        metrics.broadcasts.increment();
+        metrics.fanOut.record(recipients);
+
+        fanout.release(); /// drop the broadcaster's references; the last recipient recycles each buffer
+    }
+
+    /**
+     * One broadcast line in each encoding a recipient may need: the shared text line, a binary frame and
+     * a compressed frame. The frames are made once, for the first recipient that needs them.
+     */
+    private static final class Fanout {
+        private final SharedPayload text;
+        private final String scope;
+        private final String fromUser;
+        private final String message;
+        private final MessageKind kind;
+        private SharedPayload frame;
+        private SharedPayload compressed;
+
+        Fanout(SharedPayload text, String scope, String fromUser, String message, MessageKind kind) {
+            this.text = text;
+            this.scope = scope;
+            this.fromUser = fromUser;
+            this.message = message;
+            this.kind = kind;
+        }
+
+        SharedPayload payloadFor(ClientSession client) {
+            if (!client.isBinary()) {
+                return text;
+            }
+            if (frame == null) {
+                /// no color codes in binary frames
+                frame = kind == MessageKind.CHAT
+                        ? BinaryProtocol.chat(scope, fromUser, message, payloadPool)
+                        : BinaryProtocol.presence(scope, fromUser, message, payloadPool);
+            }
+            if ((client.getCompression() & FrameCompression.CHAT) == 0) {
+                return frame;
+            }
+            if (compressed == null) {
+                compressed = FrameCompression.deflate(frame, payloadPool);
+            }
+            return compressed;
+        }
+
+        void release() {
+            text.release();
+            if (frame != null) {
+                frame.release();
+            }
+            if (compressed != null) {
+                compressed.release();
+            }
+        }
+    }
+
+    // Method to send a message to the members of one room except the sender
+    // Chat reads "[#room] user: text", presence "[#room] user joined"
+    private static void roomBroadcast(Room room, ClientSession sender, String fromUser, String text, MessageKind kind) {
+        // Encoded once, like broadcast(); the cost scales with the room's size, not with everyone online
+        SharedPayload payload = SharedPayload.encode(kind == MessageKind.CHAT
+                ? "[" + room.getName() + "] " + fromUser + ": " + text
+                : Colors.YELLOW.getCode() + "[" + room.getName() + "] " + fromUser + " " + text + Colors.RESET.getCode(), payloadPool);
+        if (kind == MessageKind.CHAT) {
+            room.getHistory().record(payload);
+        }
+        Fanout fanout = new Fanout(payload, room.getName(), fromUser, text, kind);
+
+        int recipients = 0;
+        for (int memberId : room.members()) {
+            ClientSession member = sessions.byId(memberId);
+            // Re-check membership: the id may have been freed and handed to someone else since we read the array
+            if (member != null && member != sender && room.contains(memberId)) {
+                send(member, fanout.payloadFor(member).retain(), kind);
+                recipients++;
+            }
+        }
+        metrics.broadcasts.increment();
+        metrics.fanOut.record(recipients);
+
+        fanout.release();
+    }
+
+    // Method to send a message to a specific client through their socket channel
+    private static void send(ClientSession session, String s) {
+        // Encode the message with a newline character for proper line breaks
+        // into a UTF-8 payload, reusing a pooled buffer when it fits
+        // Binary clients get it as a NOTICE frame without the colors
+        send(session, session.isBinary() ? forClient(session, BinaryProtocol.notice(s, payloadPool))
+                : SharedPayload.encode(s, payloadPool), MessageKind.DIRECT);
+    }
+
+    // Method to compress a binary frame if the client asked for it; takes over the caller's reference
+    private static SharedPayload forClient(ClientSession session, SharedPayload frame) {
+        if ((session.getCompression() & FrameCompression.CHAT) == 0) {
+            return frame;
+        }
+        SharedPayload compressed = FrameCompression.deflate(frame, payloadPool);
+        frame.release();
+        return compressed;
+    }
+
+    // Method to deliver a private message to a local recipient
+    private static void sendPrivate(ClientSession recipient, String fromUser, String privateMessage) {
+        send(recipient, recipient.isBinary()
+                ? forClient(recipient, BinaryProtocol.privateMessage(fromUser, privateMessage, payloadPool))
+                : SharedPayload.encode(Colors.GREEN.getCode() + "🔒 Private from " + fromUser + ": " + privateMessage, payloadPool),
+                MessageKind.DIRECT);
+    }
+
+    // Method to relay a file to a client; the channel is sent with transferTo as the socket drains
+    // and closed by the client's outbound queue afterwards
+    private static void sendFile(ClientSession session, FileChannel file, long size) {
+        EventLoop loop = session.getLoop();
+        Runnable task = () -> {
+            if (!session.getKey().isValid()) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            if (session.isBinary()) {
+                /// chunks take turns with chat
+                session.getOutbound().addFramed(file, size, fileChunkBytes, (session.getCompression() & FrameCompression.FILES) != 0);
+            } else {
+                session.getOutbound().add(file, size);
+            }
+            scheduleFlush(session);
+        };
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            loop.execute(task);
+        }
+    }
+
+    // Method to queue encoded bytes for a client; its loop writes them out at the end of the iteration
+    // Safe to call from any thread: if the client lives on another loop the bytes go through its mailbox
+    // Takes over one reference to the payload
+    private static void send(ClientSession session, SharedPayload payload, MessageKind kind) {
+        EventLoop loop = session.getLoop();
+        if (loop.inEventLoop()) {
+            enqueue(session, payload, kind);
+        } else {
+            loop.execute(() -> enqueue(session, payload, kind));
+        }
+    }
+
+    // Method to append to a client's outbound queue; must run on the loop that owns the client
+    private static void enqueue(ClientSession session, SharedPayload payload, MessageKind kind) {
+        if (!session.getKey().isValid()) {
+            payload.release(); /// disconnected while the message was in the mailbox
+            return;
+        }
+
+        // Queue the bytes instead of writing here: a single write() may only take part of the
+        // buffer, and the remainder used to be lost for slow clients
+        OutboundQueue outbound = session.getOutbound();
+        outbound.add(payload, kind);
+        metrics.deliveries.increment();
+
+        // A client that stops reading must not make us buffer without limit
+        if (slowConsumerPolicy.isOverLimit(outbound) && !slowConsumerPolicy.relieve(outbound, kind)) {
+            disconnectSlowConsumer(session);
+            return;
+        }
+
+        scheduleFlush(session);
+    }
+
+    // Method to have a client's queue written once this loop iteration is done, batched with anything queued after it
+    private static void scheduleFlush(ClientSession session) {
+        if ((session.getKey().interestOps() & SelectionKey.OP_WRITE) != 0) {
+            return; /// socket was full; the selector says when it can take more
+        }
+        session.getLoop().flushLater(session);
+    }
+
+    // Method to drop a client whose outbound queue stayed over the limit
+    private static void disconnectSlowConsumer(ClientSession session) {
+        OutboundQueue outbound = session.getOutbound();
+        slowConsumerPolicy.recordDisconnect();
+        logger.info("{} disconnected as a slow consumer ({} bytes queued, {} lines dropped)",
+                session.getUsername(), outbound.getQueuedBytes(), outbound.getDroppedCount() + outbound.getConflatedCount());
+        outbound.clear();
+        String reason = Colors.RED.getCode() + "❌ Disconnected: you are not reading messages fast enough" + Colors.RESET.getCode();
+        SharedPayload goodbye = session.isBinary() ? BinaryProtocol.notice(reason, payloadPool) : SharedPayload.encode(reason, payloadPool);
+        try {
+            /// Best effort: one non-blocking write, the client isn't reading anyway
+            session.getChannel().write(goodbye.view());
+        } catch (IOException ignored) {
+        }
+        goodbye.release();
+        disconnect(session);
+    }
+
+    /// Command word -> handler; anything that is not a command is chat for everyone
+    private static final CommandRegistry commands = new CommandRegistry(limited(RateLimiter.Kind.BROADCAST, ChatServer::chatMessage));
+
+    static {
+        commands.register("/msg", limited(RateLimiter.Kind.PRIVATE, ChatServer::privateMessage));
+        commands.register("/sendfile", throttled(offloaded(ChatServer::startFileUpload))); /// creates the spool file
+        commands.register("/join", ChatServer::joinRoom);
+        commands.register("/leave", ChatServer::leaveRoom);
+        commands.register("/rooms", ChatServer::listRooms);
+        commands.registerPrefix("#", limited(RateLimiter.Kind.BROADCAST, ChatServer::roomMessage));
+        commands.register("/history", ChatServer::pageHistory);
+        commands.register("/admin", ChatServer::adminLogin);
+        commands.register("/stats", ChatServer::showStats);
+        commands.register("/queues", ChatServer::showQueues);
+        commands.register("/journal", offloaded(ChatServer::queryJournal)); /// may fault in pages of old segments
+        commands.register("/who", ChatServer::listUsers);
+        commands.register("/nick", ChatServer::changeNick);
+        commands.register("/quit", ChatServer::quit);
+        commands.register("/help", ChatServer::showHelp);
+    }
+
+    // Dispatches one line straight from the read buffer; handlers decode only the arguments they use
+    static void handleMessage(ClientSession sender, CommandLine line) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("{} sent: {}", sender.getUsername(), line.line());
+        }
+        commands.dispatch(sender, line);
+    }
+
+    static void handleMessage(ClientSession sender, String message) {
+        handleMessage(sender, CommandLine.of(message));
+    }
+
+    // /msg <user> <message>
+    private static void privateMessage(ClientSession sender, CommandLine line) {
+        String recipient = line.nextWord();
+        String privateMessage = line.rest();
+        if (privateMessage == null) {
+            send(sender, Colors.RED.getCode() + "\n❌ Usage: /msg <recipient> <message>");
+            return;
+        }
+        sendPrivateMessage(sender, recipient, privateMessage);
+    }
+
+    // Method to deliver a private message from /msg or a binary PRIVATE frame, here or on another node
+    private static void sendPrivateMessage(ClientSession sender, String recipient, String privateMessage) {
+        String senderUsername = sender.getUsername();
+        if (recipient.equals(senderUsername)) {
+            send(sender, Colors.RED.getCode() + "\n❌ You cannot message yourself.");
+            return;
+        }
+
+        ClientSession recipientSession = sessions.get(recipient);
+        if (recipientSession != null) {
+            logger.info("Private message from {} to {}: {}", senderUsername, recipient, privateMessage);
+            journal(MessageJournal.Type.PRIVATE, senderUsername, recipient, privateMessage);
+            sendPrivate(recipientSession, senderUsername, privateMessage);
+            send(sender, Colors.ORANGE.getCode()+"🔒 Private to " + recipient + ": " + privateMessage);
+
+        } else if (cluster.sendPrivate(senderUsername, recipient, privateMessage)) {
+            /// lives on another node: that node delivers it
+            logger.info("Private message from {} to {} (remote): {}", senderUsername, recipient, privateMessage);
+            journal(MessageJournal.Type.PRIVATE, senderUsername, recipient, privateMessage);
+            send(sender, Colors.ORANGE.getCode()+"🔒 Private to " + recipient + ": " + privateMessage);
+        } else if (mailboxes != null && !isGuestName(recipient)) {
+            /// nobody by that name anywhere: keep it for when they come back
+            offload(sender, () -> saveMail(sender, recipient, privateMessage));
+        } else {
+            send(sender,  Colors.RED.getCode()+"❌ User '" + recipient + "' not found.");
+        }
+    }
+
+    // Method to tell the automatic "User<n>" names apart; they are handed out again after a restart,
+    // so mail for one would reach a stranger
+    private static boolean isGuestName(String name) {
+        if (name.length() <= 4 || !name.startsWith("User")) {
+            return false;
+        }
+        for (int i = 4; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to save a private message for a user who is offline; writes to disk, so it goes through offload()
+    private static void saveMail(ClientSession sender, String recipient, String privateMessage) {
+        String senderUsername = sender.getUsername();
+        MailboxStore.Deposit result = mailboxes.deposit(recipient, senderUsername, privateMessage, sender.getMailSaved());
+        if (result != MailboxStore.Deposit.SAVED) {
+            send(sender, Colors.RED.getCode() + "❌ " + recipient + (result == MailboxStore.Deposit.SENDER_FULL
+                    ? " is offline, and you already left too many messages for offline users."
+                    : " is offline and can't take more messages right now."));
+            return;
+        }
+        sender.setMailSaved(sender.getMailSaved() + 1);
+        logger.info("Private message from {} to {} (offline, saved): {}", senderUsername, recipient, privateMessage);
+        journal(MessageJournal.Type.PRIVATE, senderUsername, recipient, privateMessage);
+        send(sender, Colors.ORANGE.getCode() + "📭 " + recipient + " is offline, they will get your message when they connect");
+
+        // They may have connected while this was being saved, after join() looked for mail
+        ClientSession arrived = sessions.get(recipient);
+        if (arrived != null) {
+            deliverMail(arrived, recipient);
+        }
+    }
+
+    // Method to hand a user everything saved for them while they were away, in one batch
+    // Reads from disk unless the mailbox is cached, so it goes through offload()
+    private static void deliverMail(ClientSession session, String name) {
+        List<MailboxStore.Mail> mail = mailboxes.take(name);
+        if (mail.isEmpty()) {
+            return; /// someone else delivered it first
+        }
+        logger.info("Delivering {} saved message(s) to {}", mail.size(), name);
+        String header = Colors.CYAN.getCode() + "📬 " + mail.size() + " message(s) while you were away:";
+        if (session.isBinary()) {
+            /// the frames are queued together, so they still leave in one gathering write
+            send(session, header);
+            for (MailboxStore.Mail m : mail) {
+                send(session, forClient(session, BinaryProtocol.privateMessage(m.from(), m.text(), payloadPool)), MessageKind.DIRECT);
+            }
+            return;
+        }
+        StringBuilder batch = new StringBuilder(header);
+        for (MailboxStore.Mail m : mail) {
+            batch.append('\n').append(Colors.GREEN.getCode()).append("🔒 Private from ").append(m.from())
+                    .append(" (").append(mailTime.format(Instant.ofEpochMilli(m.sentMillis()))).append("): ").append(m.text());
+        }
+        send(session, batch.toString());
+    }
+
+    // Method to put a command behind the rate limits for its kind of traffic
+    private static CommandHandler limited(RateLimiter.Kind kind, CommandHandler handler) {
+        return (sender, line) -> {
+            if (admit(sender, kind, line.length())) {
+                handler.handle(sender, line);
+            }
+        };
+    }
+
+    // Method to check one message from a client against the rate limits; false means drop it
+    // In delay mode everything is let through, and an over-limit client is not read from for a while
+    private static boolean admit(ClientSession sender, RateLimiter.Kind kind, long bytes) {
+        RateLimiter.ClientBuckets buckets = sender.getRateBuckets();
+        if (buckets == null) {
+            return true; /// no limits configured
+        }
+        long wait = rateLimiter.admit(buckets, kind, bytes, System.nanoTime());
+        if (wait == 0) {
+            return true;
+        }
+        if (rateLimiter.isDelaying()) {
+            holdOff(sender, wait);
+            return true;
+        }
+        if (rateLimiter.shouldWarn(buckets)) { /// once per stretch, the warnings must not become the flood
+            send(sender, Colors.RED.getCode() + "⏳ Slow down: message dropped, try again in " + (wait / 1_000_000 + 1) + " ms");
+        }
+        return false;
+    }
+
+    // Method to put /sendfile behind the file rate without ever dropping it: the raw file bytes come right
+    // after the line, and with the command gone they would be read as chat
+    private static CommandHandler throttled(CommandHandler handler) {
+        return (sender, line) -> {
+            throttleUpload(sender, 1, 0);
+            handler.handle(sender, line);
+        };
+    }
+
+    // Method to charge file offers and received upload bytes to the sender's file rate; both are slowed, never dropped
+    private static void throttleUpload(ClientSession session, long offers, long bytes) {
+        long wait = rateLimiter.throttle(session.getRateBuckets(), offers, bytes, System.nanoTime());
+        if (wait > 0) {
+            holdOff(session, wait);
+        }
+    }
+
+    // Method to stop reading from a client for a while; its socket buffer fills and TCP slows the sender down
+    private static void holdOff(ClientSession session, long nanos) {
+        park(session);
+        session.getLoop().schedule((nanos + 999_999) / 1_000_000, () -> unpark(session));
+    }
+
+    // Method to run a command that may block on a worker thread (see offload)
+    // The line is copied because the read buffer moves on once the handler has been dispatched
+    private static CommandHandler offloaded(CommandHandler handler) {
+        return (sender, line) -> {
+            if (workers == null) {
+                handler.handle(sender, line);
+                return;
+            }
+            CommandLine copy = CommandLine.of(line.line());
+            copy.skipCommand();
+            offload(sender, () -> handler.handle(sender, copy));
+        };
+    }
+
+    // /sendfile <user> <filename> <filesize>; the raw file bytes follow the line
+    private static void startFileUpload(ClientSession sender, CommandLine line) {
+        String receiver = line.nextWord();
+        String fileName = line.nextWord();
+        long fileSize = line.nextLong(); /// -1 when missing or not a number
+        if (line.hasNext()) {
+            fileSize = -1;
+        }
+        startFileUpload(sender, receiver, fileName, fileSize);
+    }
+
+    // Method to get ready for an upload from /sendfile or a binary FILE_OFFER frame
+    private static void startFileUpload(ClientSession sender, String receiver, String fileName, long fileSize) {
+        try {
+            fileName = fileName == null ? null : Path.of(fileName).getFileName().toString(); /// no directories, only a name
+        } catch (InvalidPathException e) {
+            fileName = null;
+        }
+        if (fileName == null || fileSize < 0 || sender.isSendingFile()) {
+            send(sender, Colors.RED.getCode() + "\n❌ Usage: /sendfile <user> <filename> <filesize>");
+            return;
+        }
+
+        ClientSession receiverSession = sessions.get(receiver);
+        if(receiverSession == null){
+            send(sender,Colors.RED.getCode() + "\n❌ User '" + receiver + "' not found.");
+            return;
+        }
+
+        var senderSession  = sender;
+        try {
+            /// The upload is spooled to disk as it arrives instead of buffered in memory
+            senderSession.setFileSpool(FileChannel.open(spoolPath(fileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            logger.severe("❌ Failed to create file: {}", e.getMessage());
+            send(sender, Colors.RED.getCode() + "❌ Cannot accept file '" + fileName + "' right now.");
+            return;
+        }
+        senderSession.setSendingFile(true);
+        senderSession.setFileName(fileName);
+        senderSession.setFileReceipient(receiver);
+        senderSession.setFileSize(fileSize);
+        senderSession.setFileBytesReceived(0);
+
+        send(sender, Colors.GREEN.getCode()+"📤 Ready to send file: " + fileName);
+        send(receiverSession, Colors.GREEN.getCode()+"📥 " + senderSession.getUsername() + " is sending you a file: " + fileName);
+        if (fileSize == 0) {
+            finishFileUpload(senderSession); /// no bytes or FILE_CHUNK will follow, an empty file is complete already
+        }
+    }
+
+    /// rooms: /join #room, /leave #room, /rooms, and "#room message" to talk in one
+    private static void joinRoom(ClientSession sender, CommandLine line) {
+        String roomName = roomArgument(sender, line, "/join");
+        if (roomName == null) {
+            return;
+        }
+        if (!rooms.join(roomName, sender.getId())) {
+            send(sender, Colors.RED.getCode() + "❌ You are already in " + roomName);
+            return;
+        }
+        String senderUsername = sender.getUsername();
+        sender.getRooms().add(roomName);
+        Room room = rooms.get(roomName);
+        roomBroadcast(room, sender, senderUsername, "joined", MessageKind.PRESENCE);
+        send(sender, Colors.YELLOW.getCode() + "🚪 You joined " + roomName + Colors.RESET.getCode());
+        sender.getHistoryCursors().remove(roomName); /// a fresh join replays from the newest line again
+        replayHistory(sender, room.getHistory(), roomName, historyReplayLines);
+        logger.info("{} joined {}", senderUsername, roomName);
+        journal(MessageJournal.Type.PRESENCE, senderUsername, roomName, "joined");
+    }
+
+    private static void leaveRoom(ClientSession sender, CommandLine line) {
+        String roomName = roomArgument(sender, line, "/leave");
+        if (roomName == null) {
+            return;
+        }
+        Room room = rooms.get(roomName);
+        if (!rooms.leave(roomName, sender.getId())) {
+            send(sender, Colors.RED.getCode() + "❌ You are not in " + roomName);
+            return;
+        }
+        String senderUsername = sender.getUsername();
+        sender.getRooms().remove(roomName);
+        sender.getHistoryCursors().remove(roomName);
+        roomBroadcast(room, sender, senderUsername, "left", MessageKind.PRESENCE);
+        send(sender, Colors.YELLOW.getCode() + "🚪 You left " + roomName + Colors.RESET.getCode());
+        logger.info("{} left {}", senderUsername, roomName);
+        journal(MessageJournal.Type.PRESENCE, senderUsername, roomName, "left");
+    }
+
+    // Returns the single #room argument of /join or /leave, or null after telling the sender the usage
+    private static String roomArgument(ClientSession sender, CommandLine line, String command) {
+        String roomName = line.nextWord();
+        if (roomName == null || line.hasNext() || !RoomRegistry.isValidName(roomName)) {
+            send(sender, Colors.RED.getCode() + "❌ Usage: " + command + " #room");
+            return null;
+        }
+        return roomName;
+    }
+
+    private static void listRooms(ClientSession sender, CommandLine line) {
+        StringBuilder list = new StringBuilder();
+        for (Room room : rooms.rooms()) {
+            if (list.length() > 0) {
+                list.append(", ");
+            }
+            list.append(room.getName()).append(" (").append(room.size()).append(')');
+        }
+        send(sender, Colors.BLUE.getCode() + "🏠 Rooms: " + (list.length() == 0 ? "none" : list));
+    }
+
+    // #room <message>
+    private static void roomMessage(ClientSession sender, CommandLine line) {
+        String roomName = line.command();
+        Room room = rooms.get(roomName);
+        if (room == null || !room.contains(sender.getId())) {
+            send(sender, Colors.RED.getCode() + "❌ You are not in " + roomName + ". Use /join " + roomName);
+            return;
+        }
+        String text = line.rest();
+        if (text == null) {
+            return;
+        }
+        String senderUsername = sender.getUsername();
+        logger.info("{} says in {}: {}", senderUsername, room.getName(), text);
+        journal(MessageJournal.Type.CHAT, senderUsername, room.getName(), text);
+        roomBroadcast(room, sender, senderUsername, text, MessageKind.CHAT);
+    }
+
+    /// page back through what was said: /history [n] for the main chat, /history #room [n] for a room
+    private static void pageHistory(ClientSession sender, CommandLine line) {
+        String scope = "";
+        HistoryRing ring = history;
+        if (line.nextStartsWith('#')) {
+            String roomName = line.nextWord();
+            Room room = rooms.get(roomName);
+            if (room == null || !room.contains(sender.getId())) {
+                send(sender, Colors.RED.getCode() + "❌ You are not in " + roomName + ". Use /join " + roomName);
+                return;
+            }
+            scope = room.getName();
+            ring = room.getHistory();
+        }
+        long lines = line.hasNext() ? line.nextLong() : historyReplayLines;
+        if (lines <= 0 || lines > Integer.MAX_VALUE || line.hasNext()) {
+            send(sender, Colors.RED.getCode() + "❌ Usage: /history [#room] [lines]");
+            return;
+        }
+        if (replayHistory(sender, ring, scope, (int) lines) == 0) {
+            send(sender, Colors.CYAN.getCode() + "📜 No older history" + (scope.isEmpty() ? "" : " in " + scope) + Colors.RESET.getCode());
+        }
+    }
+
+    /// /admin <secret> unlocks the operator commands for this connection
+    private static void adminLogin(ClientSession sender, CommandLine line) {
+        String secret = line.rest();
+        boolean granted = !adminSecret.isEmpty() && secret != null && MessageDigest.isEqual(
+                adminSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+        sender.setAdmin(granted);
+        logger.info("{} admin login {}", sender.getUsername(), granted ? "granted" : "refused");
+        send(sender, granted ? Colors.GREEN.getCode() + "🔑 Admin commands unlocked"
+                : Colors.RED.getCode() + "❌ Admin login refused");
+    }
+
+    /// live counters and latency percentiles, also exported over JMX as chat:type=Metrics
+    private static void showStats(ClientSession sender, CommandLine line) {
+        if (!sender.isAdmin()) {
+            send(sender, Colors.RED.getCode() + "❌ /stats is for admins. Use /admin <secret>");
+            return;
+        }
+        StringBuilder report = new StringBuilder("📈 Stats\n").append(metrics.report());
+        report.append("\nlog: queued=").append(logger.getQueuedCount()).append(" dropped=").append(logger.getDroppedCount());
+        if (journal != null) {
+            report.append("\njournal: appends=").append(journal.getAppendCount())
+                    .append(" syncs=").append(journal.getSyncCount())
+                    .append(" segments=").append(journal.getSegmentCount());
+        }
+        report.append("\npresence: ").append(presence.describe())
+                .append(" events=").append(presence.getEventCount())
+                .append(" digests=").append(presence.getDigestCount());
+        if (mailboxes != null) {
+            report.append("\nmailboxes: users=").append(mailboxes.getMailboxCount())
+                    .append(" waiting=").append(mailboxes.getWaitingCount());
+        }
+        if (rateLimiter.isEnabled()) {
+            report.append("\nrate limits: ").append(rateLimiter.describe())
+                    .append(" rejected=").append(rateLimiter.getRejectedCount())
+                    .append(" delayed=").append(rateLimiter.getDelayedCount());
+        }
+        if (workers != null) {
+            report.append("\nworkers: ").append(workers.describe())
+                    .append(" submitted=").append(workers.getSubmitted())
+                    .append(" completed=").append(workers.getCompleted());
+        }
+        if (cluster.isEnabled()) {
+            report.append("\ncluster: remoteUsers=").append(cluster.getRemoteUserCount())
+                    .append(" frames=").append(cluster.getSentFrames())
+                    .append(" batches=").append(cluster.getSentBatches())
+                    .append(" dropped=").append(cluster.getDroppedFrames());
+        }
+        send(sender, Colors.BLUE.getCode() + report);
+    }
+
+    /// /journal <from> <to> [max]: what was said and who came and went in a time range, for audits
+    /// Found through the journal's sparse timestamp index, so an old range costs as much as a recent one
+    private static void queryJournal(ClientSession sender, CommandLine line) {
+        if (!sender.isAdmin()) {
+            send(sender, Colors.RED.getCode() + "❌ /journal is for admins. Use /admin <secret>");
+            return;
+        }
+        if (journal == null) {
+            send(sender, Colors.RED.getCode() + "❌ The journal is off; start the server with -Dchat.journal=<dir>");
+            return;
+        }
+        long from = parseTime(line.nextWord());
+        long to = parseTime(line.nextWord());
+        long max = line.hasNext() ? line.nextLong() : 50;
+        if (from < 0 || to < from || max <= 0 || max > 1000 || line.hasNext()) {
+            send(sender, Colors.RED.getCode() + "❌ Usage: /journal <from> <to> [max], times as 2025-06-27T20:13 or 20:13 for today");
+            return;
+        }
+        List<MessageJournal.Entry> entries = journal.read(from, to, (int) max);
+        StringBuilder report = new StringBuilder("📒 " + entries.size() + " journal event(s)");
+        for (MessageJournal.Entry entry : entries) {
+            report.append("\n  ").append(journalTime.format(Instant.ofEpochMilli(entry.timestamp())))
+                    .append(" #").append(entry.seq()).append(' ').append(entry.type()).append(' ').append(entry.from());
+            if (!entry.scope().isEmpty()) {
+                report.append(" → ").append(entry.scope());
+            }
+            report.append(": ").append(entry.text());
+        }
+        send(sender, Colors.BLUE.getCode() + report);
+    }
+
+    // Method to read a /journal time in the server's zone: a full date-time, or a time of day meaning today; -1 if it is neither
+    private static long parseTime(String text) {
+        if (text == null) {
+            return -1;
+        }
+        try {
+            LocalDateTime time = text.indexOf('T') >= 0 ? LocalDateTime.parse(text) : LocalDate.now().atTime(LocalTime.parse(text));
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /// the clients costing us the most buffer memory, with what the slow-consumer policy did about them
+    private static void showQueues(ClientSession sender, CommandLine line) {
+        if (!sender.isAdmin()) {
+            send(sender, Colors.RED.getCode() + "❌ /queues is for admins. Use /admin <secret>");
+            return;
+        }
+        // Keep the ten largest in one pass, each size read once: other loops change the sizes while we look,
+        // and a sort comparing live values can break the comparator contract
+        ClientSession[] top = new ClientSession[10];
+        long[] topBytes = new long[top.length];
+        int found = 0;
+        for (ClientSession client : sessions.sessions()) {
+            long queued = client.getOutbound().getQueuedBytes();
+            if (found == top.length && queued <= topBytes[found - 1]) {
+                continue;
+            }
+            int i = found < top.length ? found++ : found - 1;
+            while (i > 0 && topBytes[i - 1] < queued) {
+                top[i] = top[i - 1];
+                topBytes[i] = topBytes[i - 1];
+                i--;
+            }
+            top[i] = client;
+            topBytes[i] = queued;
+        }
+        StringBuilder report = new StringBuilder("📊 Outbound queues (" + slowConsumerPolicy.describe() + ")");
+        for (int i = 0; i < found; i++) {
+            OutboundQueue q = top[i].getOutbound();
+            report.append("\n  ").append(top[i].getUsername())
+                    .append(": queued=").append(topBytes[i])
+                    .append(" peak=").append(q.getPeakQueuedBytes())
+                    .append(" dropped=").append(q.getDroppedCount())
+                    .append(" conflated=").append(q.getConflatedCount());
+        }
+        send(sender, Colors.BLUE.getCode() + report);
+    }
+
+    private static void listUsers(ClientSession sender, CommandLine line) {
+        String users = sessions.snapshot(); /// cached per block of ids, only blocks someone joined, left or renamed in are rebuilt
+        String remote = cluster.remoteSnapshot();
+        if (!remote.isEmpty()) {
+            users = users.isEmpty() ? remote : users + ", " + remote;
+        }
+        send(sender, Colors.BLUE.getCode()+"👥 Users online: " + users);
+    }
+
+    /// allow user to change their username when they join a chat
+    private static void changeNick(ClientSession sender, CommandLine line) {
+        String newUsername = line.rest();
+        if(newUsername == null){
+            send(sender, Colors.RED.getCode() + "❌ Usage: /nick <newUsername>" + Colors.RESET.getCode());
+            return;
+        }
+        String senderUsername = sender.getUsername();
+        ///checking if the new username already exists
+        ///the registry claims the new name and drops the old one in one step; the session
+        ///(and so the key attachment) is updated with it, so no stale name is left anywhere
+        if(cluster.isRemoteUser(newUsername) || !sessions.rename(sender, newUsername)){
+            send(sender,  Colors.RED.getCode() + "❌ Username '" + newUsername + "' is already taken." + Colors.RESET.getCode());
+            return;
+        }
+
+        cluster.userRenamed(senderUsername, newUsername);
+        /// Notify other and the sender
+        announce(new PresenceDigest.Event(PresenceDigest.Type.RENAMED, sender, senderUsername, newUsername));
+        send(sender, Colors.PURPLE.getCode() + "👤Your username has been changed to " + newUsername + Colors.RESET.getCode());
+
+        /// Log the change
+        logger.info("{} changed their username to {}", senderUsername, newUsername);
+        journal(MessageJournal.Type.PRESENCE, senderUsername, "", "is now known as " + newUsername);
+
+        if (mailboxes != null && mailboxes.hasMail(newUsername)) {
+            offload(sender, () -> deliverMail(sender, newUsername));
+        }
+    }
+
+    private static void quit(ClientSession sender, CommandLine line) {
+        send(sender, Colors.RESET.getCode()+"👋 Goodbye!");
+        /// Close once the goodbye has been flushed; flush() then calls disconnect(),
+        /// which cleanly closes the connection and removes the user from the maps
+        sender.setCloseAfterFlush(true);
+    }
+
+    private static void showHelp(ClientSession sender, CommandLine line) {
+        String help = """
+                🆘 Commands:
+                /msg <user> <message> - Send private message
+                /who - List online users
+                /join #room - Join (or create) a room
+                /leave #room - Leave a room
+                /rooms - List rooms
+                #room <message> - Talk in a room you joined
+                /history [#room] [n] - Show n older messages
+                /admin <secret> - Unlock admin commands (/stats, /queues, /journal)
+                /quit - Leave chat
+                /help - Show this help
+                """ + Colors.CYAN.getCode();
+        send(sender, help);
+    }
+
+    // Anything that is not a registered command goes to everyone
+    private static void chatMessage(ClientSession sender, CommandLine line) {
+        String senderUsername = sender.getUsername();
+        String message = line.line();
+        /// Logged once here; commands log their own, more specific line
+        logger.info("{} says: {}", senderUsername, message);
+        journal(MessageJournal.Type.CHAT, senderUsername, "", message);
+        broadcast(sender, senderUsername, message, MessageKind.CHAT);
+    }
+
+    // Method to handle client disconnection and cleanup
+    private static void disconnect(ClientSession session) {
+        SelectionKey key = session.getKey();
+        if (!key.isValid()) {
+            return; /// already cleaned up
+        }
+        try {
+            // The session is the key attachment, so we know the username right away
+            // (null if it went away before its protocol was settled: nobody was told it was here)
+            String usernameToRemove = session.getUsername();
+
+            if (session.isJoined()) {
+                // Log the disconnection event to server logs
+                logger.info("{} has disconnected.", usernameToRemove);
+                journal(MessageJournal.Type.PRESENCE, usernameToRemove, "", "left");
+
+                // Leave every room first, while the session id still belongs to this client
+                for (String roomName : session.getRooms()) {
+                    rooms.leave(roomName, session.getId());
+                }
+
+                // Remove the client from the registry
+                sessions.remove(session);
+                cluster.userLeft(usernameToRemove);
+            }
+
+            if (session.getIdleTimer() != null) {
+                session.getIdleTimer().cancel(); /// O(1) on the timing wheel
+                session.setIdleTimer(null);
+            }
+
+            // Cancel the selection key to stop monitoring this channel
+            // (also makes messages still in the mailbox for this client skip it)
+            key.cancel();
+
+            // Drop anything still queued for this client
+            session.getOutbound().clear();
+            metrics.connectionsClosed.increment();
+            session.getLoop().connectionClosed();
+            if (!session.isParked()) { /// otherwise a worker still uses them, unpark() cleans up
+                releaseReadBuffer(session); /// read buffer goes back to the pool
+                closeFileSpool(session); /// abandon a half-finished upload
+            }
+
+            // Close the socket channel to free system resources
+            session.getChannel().close();
+
+            // Notify all other clients that this user has left
+            // Message includes a wave emoji and is colored cyan
+            if (session.isJoined()) {
+                announce(new PresenceDigest.Event(PresenceDigest.Type.LEFT, session, usernameToRemove, null));
+            }
+
+        } catch (Exception e) {
+            // If any error occurs during disconnection process
+            // Log it as a severe error, with the exception's type and message
+            logger.severe("Error disconnecting client: {}", e);
+        }
+    }
+
+
+}
\ No newline at end of file
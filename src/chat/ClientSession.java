@@ -0,0 +1,267 @@
+package chat;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+public class ClientSession {
+
+    private volatile String username; /// read by other loops during fan-out, changed only via SessionRegistry
+    private boolean isSendingFile = false;
+    private boolean isReceivingFile = false;
+    private String fileReceipient;
+    private String fileName;
+    private long fileSize;
+    private long fileBytesReceived; /// how much of fileSize has been spooled so far
+    private FileChannel fileSpool; /// upload is streamed here chunk by chunk instead of kept in memory
+    private final OutboundQueue outbound = new OutboundQueue(); /// bytes waiting for the end of the loop iteration or OP_WRITE
+    private boolean flushPending = false; /// already on its loop's list of clients to flush this iteration
+    private SelectionKey key;
+    private EventLoop loop; /// the worker loop that owns this client's channel
+    private LineDecoder decoder; /// frames incoming bytes into lines
+    private FrameDecoder frameDecoder; /// replaces decoder once the client switched to the binary protocol
+    private volatile boolean binary = false; /// read by other loops to pick the payload they send
+    private boolean joined = false; /// protocol settled, registered under a name and announced
+    private volatile int compression = 0; /// FrameCompression flags the binary client asked for
+    private boolean closeAfterFlush = false; /// set by /quit so the goodbye still reaches the client
+    private int parked = 0; /// holds on reading from this client: blocking work on a worker, a rate limit; read again at 0
+    private RateLimiter.ClientBuckets rateBuckets; /// null when no rate limit is configured
+    private long lastReadNanos; /// System.nanoTime() of the last bytes from the client, for the idle reaper
+    private long lastPingNanos; /// when the last heartbeat went out
+    private TimingWheel.Timeout idleTimer; /// next idle check on the loop's timing wheel, null when none is armed
+    private int id = -1; /// compact id from SessionRegistry, used for room membership
+    private final Set<String> rooms = new HashSet<>(); /// rooms joined, only touched by the owning loop
+    private boolean admin = false; /// unlocked with /admin <secret>, gates /stats
+    private final Map<String, Long> historyCursors = new HashMap<>(); /// scope ("" or room) -> oldest line seen, for /history
+    private int mailSaved = 0; /// messages left in offline mailboxes by this connection; only touched by offloaded work, one task at a time
+
+   public ClientSession(String username){
+       this.username = username;
+   }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public long getFileBytesReceived() {
+        return fileBytesReceived;
+    }
+
+    public void setFileBytesReceived(long fileBytesReceived) {
+        this.fileBytesReceived = fileBytesReceived;
+    }
+
+    public FileChannel getFileSpool() {
+        return fileSpool;
+    }
+
+    public void setFileSpool(FileChannel fileSpool) {
+        this.fileSpool = fileSpool;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public boolean isSendingFile() {
+        return isSendingFile;
+    }
+
+    public void setSendingFile(boolean sendingFile) {
+        isSendingFile = sendingFile;
+    }
+
+    public boolean isReceivingFile() {
+        return isReceivingFile;
+    }
+
+    public void setReceivingFile(boolean receivingFile) {
+        isReceivingFile = receivingFile;
+    }
+
+    public String getFileReceipient() {
+        return fileReceipient;
+    }
+
+    public void setFileReceipient(String fileReceipient) {
+        this.fileReceipient = fileReceipient;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public SocketChannel getChannel() {
+        return (SocketChannel) key.channel();
+    }
+
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    public void setLoop(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    public LineDecoder getDecoder() {
+        return decoder;
+    }
+
+    public void setDecoder(LineDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    public FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    public void setFrameDecoder(FrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public int getCompression() {
+        return compression;
+    }
+
+    public void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    public boolean isJoined() {
+        return joined;
+    }
+
+    public void setJoined(boolean joined) {
+        this.joined = joined;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    public void setAdmin(boolean admin) {
+        this.admin = admin;
+    }
+
+    public int getMailSaved() {
+        return mailSaved;
+    }
+
+    public void setMailSaved(int mailSaved) {
+        this.mailSaved = mailSaved;
+    }
+
+    public Map<String, Long> getHistoryCursors() {
+        return historyCursors;
+    }
+
+    public boolean isCloseAfterFlush() {
+        return closeAfterFlush;
+    }
+
+    public void setCloseAfterFlush(boolean closeAfterFlush) {
+        this.closeAfterFlush = closeAfterFlush;
+    }
+
+    public boolean isFlushPending() {
+        return flushPending;
+    }
+
+    public void setFlushPending(boolean flushPending) {
+        this.flushPending = flushPending;
+    }
+
+    public boolean isParked() {
+        return parked > 0;
+    }
+
+    public void park() {
+        parked++;
+    }
+
+    /// @return true if that was the last hold, so the client can be read again
+    public boolean unpark() {
+        return --parked == 0;
+    }
+
+    public RateLimiter.ClientBuckets getRateBuckets() {
+        return rateBuckets;
+    }
+
+    public void setRateBuckets(RateLimiter.ClientBuckets rateBuckets) {
+        this.rateBuckets = rateBuckets;
+    }
+
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public void setLastReadNanos(long lastReadNanos) {
+        this.lastReadNanos = lastReadNanos;
+    }
+
+    public long getLastPingNanos() {
+        return lastPingNanos;
+    }
+
+    public void setLastPingNanos(long lastPingNanos) {
+        this.lastPingNanos = lastPingNanos;
+    }
+
+    public TimingWheel.Timeout getIdleTimer() {
+        return idleTimer;
+    }
+
+    public void setIdleTimer(TimingWheel.Timeout idleTimer) {
+        this.idleTimer = idleTimer;
+    }
+}
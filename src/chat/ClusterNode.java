@@ -0,0 +1,390 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links this server to its peers so several instances behave like one chat.
+ * <p>
+ * Every node listens on a peer port and dials every peer it is configured with, so each pair of nodes
+ * is joined by two TCP links, one per direction: a node only ever writes to the links it dialed and
+ * only reads from the ones it accepted. Peer traffic runs on plain blocking threads, away from the
+ * event loops; frames for a peer are queued and a writer thread sends whatever has piled up with one
+ * flush, so a burst of broadcasts costs one syscall per peer, not one per message.
+ * <p>
+ * A broadcast crosses each link once and the receiving node fans it out to its own clients, so
+ * cross-node cost scales with the number of nodes, not with the number of remote users. Nodes also
+ * announce who is connected to them; the resulting name -> node view backs {@code /who}, {@code /msg}
+ * to remote users and nickname uniqueness, and each node turns the announcements into the join, leave
+ * and rename notices of its own clients. Two nodes can still accept the same new name at the same
+ * moment; when the announcements cross, the node whose name sorts later renames its local user.
+ */
+public class ClusterNode {
+
+    /// Frame types on a peer link; each is followed by its UTF fields
+    private static final byte HELLO = 1;       /// node, peer port
+    private static final byte USERS = 2;       /// count, names: everyone on the sending node right now
+    private static final byte USER_ADD = 3;    /// name
+    private static final byte USER_REMOVE = 4; /// name
+    private static final byte USER_RENAME = 5; /// old name, new name
+    private static final byte BROADCAST = 6;   /// kind, from, text
+    private static final byte PRIVATE = 7;     /// from, to, text
+
+    /// One queued frame: a type and its string fields
+    private record Frame(byte type, String... fields) {
+    }
+
+    /// The remote part of {@code /who} and the {@link #remoteVersion} it was built from
+    private record RemoteSnapshot(int version, String text) {
+    }
+
+    /// Outgoing link to one peer, re-dialed whenever it drops
+    private final class PeerLink implements Runnable {
+        final String host;
+        final int port;
+        final LinkedBlockingQueue<Frame> queue = new LinkedBlockingQueue<>(65536);
+        volatile String peerNode; /// learned from the peer's HELLO on the inbound link, used to route /msg
+        volatile boolean connected = false;
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void offer(Frame frame) {
+            if (connected && !queue.offer(frame)) {
+                droppedFrames.increment(); /// peer far behind; it gets a full USERS resync when it reconnects
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Frame> batch = new ArrayList<>(256);
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port), 2000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    /// Start from a clean slate: anything queued before the snapshot is already reflected in it
+                    queue.clear();
+                    connected = true;
+                    write(out, new Frame(HELLO, nodeName, Integer.toString(listenPort)));
+                    write(out, usersFrame());
+                    out.flush();
+                    ChatServer.logger.info("Cluster link to {}:{} up", host, port);
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, 255);
+                        for (Frame frame : batch) {
+                            write(out, frame);
+                        }
+                        out.flush(); /// one flush per batch
+                        sentBatches.increment();
+                        sentFrames.add(batch.size());
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        ChatServer.logger.info("Cluster link to {}:{} down: {}", host, port, e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    batch.clear();
+                }
+                try {
+                    Thread.sleep(reconnectMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final String nodeName;
+    private final int listenPort; /// 0 when clustering is off
+    private final List<PeerLink> peers = new ArrayList<>();
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>(); /// user -> node
+    /// Bumped after every change to remoteUsers, so remoteSnapshot() only rebuilds its text when it is out of date
+    private final AtomicInteger remoteVersion = new AtomicInteger();
+    private volatile RemoteSnapshot remoteSnapshot = new RemoteSnapshot(0, "");
+    private final long reconnectMillis;
+    private final LongAdder sentFrames = new LongAdder();
+    private final LongAdder sentBatches = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+
+    public ClusterNode(String nodeName, int listenPort, List<String> peerAddresses, long reconnectMillis) {
+        this.nodeName = nodeName;
+        this.listenPort = listenPort;
+        this.reconnectMillis = reconnectMillis;
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            peers.add(new PeerLink(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    /// Builds a node from the {@code chat.cluster.*} system properties; without {@code chat.cluster.port} it stays standalone
+    public static ClusterNode fromSystemProperties(int clientPort) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        return new ClusterNode(
+                System.getProperty("chat.cluster.node", "node-" + clientPort),
+                Integer.getInteger("chat.cluster.port", 0),
+                peers,
+                Long.getLong("chat.cluster.reconnectMillis", 1000));
+    }
+
+    public boolean isEnabled() {
+        return listenPort > 0;
+    }
+
+    /// Opens the peer port and starts dialing the peers; does nothing when clustering is off
+    public void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        ServerSocket server = new ServerSocket(listenPort);
+        Thread acceptor = new Thread(() -> acceptLoop(server), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink peer : peers) {
+            Thread writer = new Thread(peer, "cluster-link-" + peer.host + ":" + peer.port);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        ChatServer.logger.info("Cluster node {} listening for peers on {}, peers: {}", nodeName, listenPort, peers.size());
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    // ---- local events, announced to every peer ----
+
+    public void userJoined(String name) {
+        send(new Frame(USER_ADD, name));
+    }
+
+    public void userLeft(String name) {
+        send(new Frame(USER_REMOVE, name));
+    }
+
+    public void userRenamed(String oldName, String newName) {
+        send(new Frame(USER_RENAME, oldName, newName));
+    }
+
+    /// Forwards a line to every peer once; each peer delivers it to all its own clients
+    public void broadcast(String from, String text, MessageKind kind) {
+        send(new Frame(BROADCAST, kind.name(), from, text));
+    }
+
+    /// @return {@code false} if {@code to} is not on any reachable peer
+    public boolean sendPrivate(String from, String to, String text) {
+        String node = remoteUsers.get(to);
+        if (node == null) {
+            return false;
+        }
+        for (PeerLink peer : peers) {
+            if (node.equals(peer.peerNode) && peer.connected) {
+                peer.offer(new Frame(PRIVATE, from, to, text));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void send(Frame frame) {
+        for (PeerLink peer : peers) {
+            peer.offer(frame);
+        }
+    }
+
+    // ---- the distributed view of who is online ----
+
+    public boolean isRemoteUser(String name) {
+        return remoteUsers.containsKey(name);
+    }
+
+    /// Remote users as "name@node", comma-separated; empty when there are none
+    public String remoteSnapshot() {
+        int version = remoteVersion.get();
+        RemoteSnapshot cached = remoteSnapshot;
+        if (cached.version() == version) {
+            return cached.text();
+        }
+        StringBuilder users = new StringBuilder();
+        for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+            if (users.length() > 0) {
+                users.append(", ");
+            }
+            users.append(entry.getKey()).append('@').append(entry.getValue());
+        }
+        /// a change that raced with the loop above has bumped the version, so the next call builds again
+        remoteSnapshot = new RemoteSnapshot(version, users.toString());
+        return users.toString();
+    }
+
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    public long getSentFrames() {
+        return sentFrames.sum();
+    }
+
+    public long getSentBatches() {
+        return sentBatches.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    // ---- inbound links ----
+
+    private void acceptLoop(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> readLoop(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                ChatServer.logger.severe("Cluster accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peerNode = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case HELLO -> {
+                        peerNode = in.readUTF();
+                        bindPeer(peerNode, socket, Integer.parseInt(in.readUTF()));
+                    }
+                    case USERS -> {
+                        /// a resync, not news: nobody is told about these users
+                        int count = in.readInt();
+                        dropUsersOf(peerNode);
+                        for (int i = 0; i < count; i++) {
+                            addRemoteUser(in.readUTF(), peerNode);
+                        }
+                    }
+                    case USER_ADD -> {
+                        String name = in.readUTF();
+                        addRemoteUser(name, peerNode);
+                        ChatServer.onPeerPresence(PresenceDigest.Type.JOINED, name, null);
+                    }
+                    case USER_REMOVE -> {
+                        String name = in.readUTF();
+                        if (remoteUsers.remove(name, peerNode)) {
+                            remoteVersion.incrementAndGet();
+                            ChatServer.onPeerPresence(PresenceDigest.Type.LEFT, name, null);
+                        }
+                    }
+                    case USER_RENAME -> {
+                        String oldName = in.readUTF();
+                        String newName = in.readUTF();
+                        remoteUsers.remove(oldName, peerNode);
+                        addRemoteUser(newName, peerNode);
+                        ChatServer.onPeerPresence(PresenceDigest.Type.RENAMED, oldName, newName);
+                    }
+                    case BROADCAST -> {
+                        MessageKind kind = MessageKind.valueOf(in.readUTF());
+                        String from = in.readUTF();
+                        ChatServer.onPeerBroadcast(from, in.readUTF(), kind);
+                    }
+                    case PRIVATE -> {
+                        String from = in.readUTF();
+                        String to = in.readUTF();
+                        ChatServer.onPeerPrivate(from, to, in.readUTF());
+                    }
+                    default -> throw new IOException("unknown frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            ChatServer.logger.info("Cluster link from {} closed: {}", peerNode != null ? peerNode : socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (RuntimeException e) {
+            ChatServer.logger.severe("Cluster link from {} failed: {}", peerNode, e);
+        } finally {
+            dropUsersOf(peerNode);
+        }
+    }
+
+    /// Remembers which outgoing link leads to {@code node}: the one dialing the peer port it announced, on its host
+    private void bindPeer(String node, Socket socket, int peerPort) {
+        InetAddress address = socket.getInetAddress();
+        for (PeerLink peer : peers) {
+            if (peer.port == peerPort && sameHost(peer.host, address)) {
+                peer.peerNode = node;
+                return;
+            }
+        }
+        ChatServer.logger.info("Cluster node {} connected but is not in chat.cluster.peers; /msg to its users won't work", node);
+    }
+
+    private static boolean sameHost(String configured, InetAddress address) {
+        try {
+            for (InetAddress candidate : InetAddress.getAllByName(configured)) {
+                if (candidate.equals(address) || (candidate.isLoopbackAddress() && address.isLoopbackAddress())) {
+                    return true;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    private void addRemoteUser(String name, String node) {
+        remoteUsers.put(name, node);
+        remoteVersion.incrementAndGet();
+        /// Both nodes accepted this name at the same moment: the node that sorts later gives way
+        if (nodeName.compareTo(node) > 0) {
+            ChatServer.onPeerNameConflict(name);
+        }
+    }
+
+    private void dropUsersOf(String node) {
+        if (node != null) {
+            remoteUsers.values().removeIf(node::equals);
+            remoteVersion.incrementAndGet();
+        }
+    }
+
+    private Frame usersFrame() {
+        List<String> names = new ArrayList<>(ChatServer.localUserNames());
+        return new Frame(USERS, names.toArray(new String[0]));
+    }
+
+    private static void write(DataOutputStream out, Frame frame) throws IOException {
+        out.writeByte(frame.type());
+        if (frame.type() == USERS) {
+            out.writeInt(frame.fields().length);
+        }
+        for (String field : frame.fields()) {
+            out.writeUTF(field);
+        }
+    }
+}
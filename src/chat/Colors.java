@@ -0,0 +1,40 @@
+package chat;
+
+public enum Colors {
+    RED("\u001B[31m")
+    , GREEN("\u001B[32m")
+    , RESET("\u001B[0m")
+    , BLUE("\u001B[34m")
+    , YELLOW("\u001B[33m")
+    , PURPLE("\u001B[35m")
+    , CYAN("\u001B[36m")
+    , ORANGE("\u001B[38;5;208m")
+    , WHITE("\u001B[37m")
+    , BLACK("\u001B[30m");
+
+    private String code;
+    Colors(String code) {
+        this.code  = code;
+    }
+
+    public String getCode(){
+        return code;
+    }
+
+    /// Removes ANSI color sequences ("ESC [ ... m"), for clients that render text themselves
+    public static String strip(String text) {
+        int esc = text.indexOf('\u001B');
+        if (esc < 0) {
+            return text;
+        }
+        StringBuilder plain = new StringBuilder(text.length());
+        int from = 0;
+        while (esc >= 0) {
+            plain.append(text, from, esc);
+            int end = text.indexOf('m', esc);
+            from = end < 0 ? text.length() : end + 1;
+            esc = text.indexOf('\u001B', from);
+        }
+        return plain.append(text, from, text.length()).toString();
+    }
+}
@@ -0,0 +1,7 @@
+package chat;
+
+/// Runs one command; the line's cursor is on the first argument after the command word
+@FunctionalInterface
+public interface CommandHandler {
+    void handle(ClientSession sender, CommandLine line);
+}
@@ -0,0 +1,159 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One framed input line, seen in place in the buffer it was read into.
+ * <p>
+ * {@link CommandRegistry} matches the command word on the raw bytes, and handlers take their arguments
+ * with {@link #nextWord()}, {@link #nextLong()} and {@link #rest()}. Nothing is decoded to a String
+ * unless a handler asks for it.
+ * <p>
+ * A connection reuses one view for all its lines, so it is only valid until the handler returns.
+ * Whitespace is any byte up to {@code ' '}; such bytes never occur inside a multi-byte UTF-8 sequence.
+ */
+public class CommandLine {
+
+    private ByteBuffer buffer;
+    private int start;  /// first byte of the trimmed line
+    private int end;    /// one past its last byte
+    private int cursor; /// next argument byte, see the next*() methods
+
+    /// Points the view at {@code [from, to)} of {@code buffer}, trimmed, with the cursor on the first word
+    public CommandLine set(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSpace(buffer.get(from))) {
+            from++;
+        }
+        while (to > from && isSpace(buffer.get(to - 1))) {
+            to--;
+        }
+        this.buffer = buffer;
+        this.start = from;
+        this.end = to;
+        this.cursor = from;
+        return this;
+    }
+
+    /// A view over a copy of {@code line}, for callers that already hold a String
+    public static CommandLine of(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return new CommandLine().set(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    public boolean isEmpty() {
+        return start == end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public byte byteAt(int index) {
+        return buffer.get(start + index);
+    }
+
+    /// Length in bytes of the command word, everything before the first whitespace
+    public int commandLength() {
+        int i = start;
+        while (i < end && !isSpace(buffer.get(i))) {
+            i++;
+        }
+        return i - start;
+    }
+
+    /// The command word, e.g. "/msg" or "#room"
+    public String command() {
+        return decode(start, start + commandLength());
+    }
+
+    /// Puts the cursor on the first argument after the command word; done by the registry before a handler runs
+    void skipCommand() {
+        cursor = start + commandLength();
+    }
+
+    /// @return {@code true} if there is another argument after the cursor
+    public boolean hasNext() {
+        skipSpaces();
+        return cursor < end;
+    }
+
+    /// @return {@code true} if the next argument starts with {@code c}, without consuming it
+    public boolean nextStartsWith(char c) {
+        return hasNext() && buffer.get(cursor) == (byte) c;
+    }
+
+    /// @return the next whitespace-separated argument, or {@code null} if there is none
+    public String nextWord() {
+        if (!hasNext()) {
+            return null;
+        }
+        int from = cursor;
+        while (cursor < end && !isSpace(buffer.get(cursor))) {
+            cursor++;
+        }
+        return decode(from, cursor);
+    }
+
+    /**
+     * Parses the next argument as a non-negative decimal number without decoding it.
+     * The argument is consumed either way.
+     *
+     * @return the number, or -1 if there is no next argument or it is not a number that fits a long
+     */
+    public long nextLong() {
+        if (!hasNext()) {
+            return -1;
+        }
+        long value = 0;
+        boolean valid = true;
+        for (; cursor < end && !isSpace(buffer.get(cursor)); cursor++) {
+            int digit = buffer.get(cursor) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                valid = false; /// keep going so the whole argument is consumed
+            } else {
+                value = value * 10 + digit;
+            }
+        }
+        return valid ? value : -1;
+    }
+
+    /// @return everything after the cursor as one string, or {@code null} if nothing is left
+    public String rest() {
+        if (!hasNext()) {
+            return null;
+        }
+        String rest = decode(cursor, end);
+        cursor = end;
+        return rest;
+    }
+
+    /// The whole trimmed line
+    public String line() {
+        return decode(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return line();
+    }
+
+    private void skipSpaces() {
+        while (cursor < end && isSpace(buffer.get(cursor))) {
+            cursor++;
+        }
+    }
+
+    private String decode(int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(view).toString();
+    }
+
+    private static boolean isSpace(byte b) {
+        return b >= 0 && b <= ' '; /// bytes >= 0x80 are UTF-8 continuation or lead bytes, never whitespace
+    }
+}
@@ -0,0 +1,93 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps command words to handlers with a byte trie, walked straight over the framed line.
+ * <p>
+ * Dispatch costs one array step per byte of the command word. It does not depend on how many commands
+ * are registered, and it allocates nothing. A word matches a command exactly (so "/nickname" is not
+ * "/nick"), or else the longest registered prefix (so "#room" goes to the "#" handler). Anything else,
+ * plain chat included, goes to the fallback.
+ * <p>
+ * Commands are registered once at startup; lookups are read-only, so every event loop can share a registry.
+ */
+public class CommandRegistry {
+
+    private static final class Node {
+        final Node[] next = new Node[128]; /// command words are ASCII, anything else falls through to the fallback
+        CommandHandler exact;
+        CommandHandler prefix;
+    }
+
+    private final Node root = new Node();
+    private final CommandHandler fallback;
+
+    public CommandRegistry(CommandHandler fallback) {
+        this.fallback = fallback;
+    }
+
+    /// Handles lines whose first word is exactly {@code name}
+    public void register(String name, CommandHandler handler) {
+        Node node = insert(name);
+        if (node.exact != null) {
+            throw new IllegalArgumentException("Command already registered: " + name);
+        }
+        node.exact = handler;
+    }
+
+    /// Handles lines whose first word starts with {@code prefix} and is no registered command
+    public void registerPrefix(String prefix, CommandHandler handler) {
+        Node node = insert(prefix);
+        if (node.prefix != null) {
+            throw new IllegalArgumentException("Prefix already registered: " + prefix);
+        }
+        node.prefix = handler;
+    }
+
+    /// Finds the handler for the line's command word and runs it with the cursor on the first argument
+    public void dispatch(ClientSession sender, CommandLine line) {
+        CommandHandler handler = lookup(line);
+        line.skipCommand(); /// the fallback can still read the whole line with line()
+        handler.handle(sender, line);
+    }
+
+    CommandHandler lookup(CommandLine line) {
+        int length = line.commandLength();
+        CommandHandler prefix = null;
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            int b = line.byteAt(i);
+            if (b < 0) {
+                node = null;
+                break;
+            }
+            node = node.next[b];
+            if (node == null) {
+                break;
+            }
+            if (node.prefix != null) {
+                prefix = node.prefix;
+            }
+        }
+        if (node != null && node.exact != null) {
+            return node.exact;
+        }
+        return prefix != null ? prefix : fallback;
+    }
+
+    private Node insert(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length == 0 || !word.chars().allMatch(c -> c > ' ' && c < 128)) {
+            throw new IllegalArgumentException("Command words must be non-empty printable ASCII: " + word);
+        }
+        Node node = root;
+        for (byte b : bytes) {
+            if (node.next[b] == null) {
+                node.next[b] = new Node();
+            }
+            node = node.next[b];
+        }
+        return node;
+    }
+}
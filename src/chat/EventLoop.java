@@ -0,0 +1,168 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * One worker reactor: a thread with its own {@link Selector} that owns a subset of the client channels.
+ * <p>
+ * Everything that touches a channel's key or its {@link ClientSession} runs on the owning loop. Other
+ * threads (the acceptor, or a different loop delivering a broadcast or {@code /msg}) hand work over
+ * through {@link #execute(Runnable)}, which drops the task into a lock-free mailbox and wakes the selector.
+ */
+public class EventLoop implements Runnable {
+
+    private final String name;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(); /// avoids one wakeup() syscall per task
+    private final AtomicInteger connections = new AtomicInteger();   /// read by the acceptor for least-loaded balancing
+    /// Delayed tasks (-Dchat.timer.tickMillis, -Dchat.timer.wheelSize); only touched by the loop thread
+    private final TimingWheel timers = new TimingWheel(
+            Integer.getInteger("chat.timer.tickMillis", 50),
+            Integer.getInteger("chat.timer.wheelSize", 512));
+    /// Clients that got output during this iteration, flushed once at its end; only touched by the loop thread
+    private final ArrayList<ClientSession> pendingFlush = new ArrayList<>();
+    private Thread thread;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /// Lets the calling thread act as this loop without starting one, so benchmarks can drive sessions directly
+    void adoptCurrentThread() {
+        thread = Thread.currentThread();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /// Runs the task on this loop's thread, after the current select() returns
+    public void execute(Runnable task) {
+        mailbox.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /// Writes the client's queued output at the end of this iteration, together with whatever else gets
+    /// queued for it until then; must be called on the loop
+    public void flushLater(ClientSession session) {
+        if (!session.isFlushPending()) {
+            session.setFlushPending(true);
+            pendingFlush.add(session);
+        }
+    }
+
+    /// Runs the task on this loop's thread after about {@code delayMillis}; must be called on the loop
+    public TimingWheel.Timeout schedule(long delayMillis, Runnable task) {
+        return timers.schedule(System.nanoTime(), delayMillis, task);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long waitMillis = timers.waitMillis(System.nanoTime());
+                if (waitMillis < 0) {
+                    selector.select(); /// no timers, sleep until there is I/O or mail
+                } else if (waitMillis > 0) {
+                    selector.select(waitMillis);
+                } else {
+                    selector.selectNow();
+                }
+                long busySince = System.nanoTime();
+                /// Clear the flag before draining so a task queued from now on triggers a fresh wakeup
+                wakeupPending.set(false);
+                runTasks();
+                timers.advance(busySince);
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    processKey(key);
+                }
+                flushPending();
+                ChatServer.metrics.loopIteration.recordSince(busySince);
+            } catch (IOException e) {
+                ChatServer.logger.severe("{} select failed: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                ChatServer.onReadable(key);
+            }
+            // The socket can take more bytes: drain whatever send() queued for it
+            // (the key may have been cancelled by a disconnect while reading)
+            if (key.isValid() && key.isWritable()) {
+                ChatServer.onWritable(key);
+            }
+        } catch (RuntimeException e) {
+            /// One bad message must not take the whole loop (and every client on it) down
+            ChatServer.logger.log(Level.SEVERE, "{} failed handling {}: {}", name, key.attachment(), e);
+        }
+    }
+
+    private void flushPending() {
+        /// by index: a flush that disconnects a client can queue a goodbye for another one
+        for (int i = 0; i < pendingFlush.size(); i++) {
+            ClientSession session = pendingFlush.get(i);
+            session.setFlushPending(false);
+            try {
+                ChatServer.flushPending(session);
+            } catch (RuntimeException e) {
+                ChatServer.logger.log(Level.SEVERE, "{} failed flushing {}: {}", name, session.getUsername(), e);
+            }
+        }
+        pendingFlush.clear();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mailbox.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ChatServer.logger.severe("{} task failed: {}", name, e);
+            }
+        }
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+}
@@ -0,0 +1,143 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for binary clients that asked for it with a {@link BinaryProtocol#COMPRESS} frame.
+ * <p>
+ * Each frame body is compressed on its own (raw deflate) against a preset dictionary of what the
+ * server sends most: presence phrases, command replies, emoji prefixes. The dictionary is the context
+ * every frame shares, so even a short chat line shrinks. Because frames do not depend on each other,
+ * a broadcast is compressed once and the same bytes go to every compressing recipient. A per-connection
+ * deflate stream would need one compression per recipient.
+ * <p>
+ * A compressed frame is {@code DEFLATED: u8 innerType, deflated body}. It is only used when it comes
+ * out smaller than the frame it replaces.
+ */
+public final class FrameCompression {
+
+    /// Compress chat, presence, replies and history
+    public static final int CHAT = 1;
+    /// Compress file relays too
+    public static final int FILES = 2;
+
+    /// zlib makes the most of the end of the dictionary, so the most common phrases come last
+    private static final byte[] DICTIONARY = String.join("",
+            "📥 You received file '", "' from ", "📤 Ready to send file: ", "✅ File '", "' sent successfully",
+            "❌ Usage: /", "❌ User '", "' not found.", "👤Your username has been changed to ",
+            "📜 No older history", "🚪 You left #", "🚪 You joined #", "👥 Users online: ", "🔒 Private to ",
+            " has left the chat 👋", " is now known as ", " has joined the chat", ", User", "User"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final int level = Integer.getInteger("chat.compress.level", Deflater.DEFAULT_COMPRESSION);
+    /// Frames shorter than this are sent as they are, deflate can't win much on them
+    private static final int minBytes = Integer.getInteger("chat.compress.minBytes", 48);
+
+    /// Deflaters and inflaters are not thread-safe, each event loop thread keeps its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Compresses one encoded frame. The caller keeps its reference to {@code frame} and owns the one
+     * on the result, which is {@code frame} itself (retained) when compressing would not make it smaller.
+     */
+    public static SharedPayload deflate(SharedPayload frame, BufferPool pool) {
+        int size = frame.size();
+        if (size < minBytes) {
+            return frame.retain();
+        }
+        ByteBuffer body = frame.view();
+        byte type = body.get(4);
+        body.position(BinaryProtocol.HEADER_BYTES);
+
+        boolean pooled = size <= pool.getBufferSize();
+        ByteBuffer out = pooled ? pool.acquire() : ByteBuffer.allocate(size);
+        out.limit(size - 1); /// must come out at least a byte smaller, or it isn't worth it
+        out.position(BinaryProtocol.HEADER_BYTES + 1);
+        if (!deflateInto(body, out)) {
+            if (pooled) {
+                pool.release(out);
+            }
+            return frame.retain();
+        }
+        out.putInt(0, out.position() - 4).put(4, BinaryProtocol.DEFLATED).put(5, type).flip();
+        ChatServer.metrics.compressedIn.add(size);
+        ChatServer.metrics.compressedOut.add(out.remaining());
+        return pooled ? SharedPayload.pooled(out, pool) : SharedPayload.wrap(out);
+    }
+
+    /// One FILE_CHUNK frame for {@code length} bytes of the file at {@code position}, compressed if that helps
+    public static ByteBuffer deflateFileChunk(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (file.read(data, position + data.position()) < 0) {
+                throw new IOException("File shrank while it was being relayed");
+            }
+        }
+        data.flip();
+        ByteBuffer out = ByteBuffer.allocate(BinaryProtocol.HEADER_BYTES + length);
+        out.limit(out.capacity() - 1).position(BinaryProtocol.HEADER_BYTES + 1);
+        if (deflateInto(data.duplicate(), out)) {
+            out.putInt(0, out.position() - 4).put(4, BinaryProtocol.DEFLATED).put(5, BinaryProtocol.FILE_CHUNK).flip();
+            ChatServer.metrics.compressedIn.add(BinaryProtocol.HEADER_BYTES + length);
+            ChatServer.metrics.compressedOut.add(out.remaining());
+            return out;
+        }
+        out.clear();
+        BinaryProtocol.fileChunkHeader(out, length);
+        out.limit(out.capacity()).position(BinaryProtocol.HEADER_BYTES);
+        out.put(data).flip();
+        return out;
+    }
+
+    /**
+     * Inflates the rest of a DEFLATED frame into {@code target} as a complete frame of its inner type,
+     * ready for a {@link FrameDecoder}. The inner frame may be no larger than {@code target}.
+     */
+    public static void inflate(byte innerType, ByteBuffer compressed, ByteBuffer target) throws ProtocolException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(compressed);
+        target.clear().position(BinaryProtocol.HEADER_BYTES);
+        try {
+            while (!inflater.finished()) {
+                if (!target.hasRemaining()) {
+                    throw new ProtocolException("Compressed frame inflates past " + target.capacity() + " bytes");
+                }
+                if (inflater.inflate(target) == 0 && inflater.needsInput()) {
+                    throw new ProtocolException("Truncated compressed frame");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed frame: " + e.getMessage());
+        }
+        target.putInt(0, target.position() - 4).put(4, innerType);
+    }
+
+    /// @return {@code false} if the compressed data did not fit in {@code out}
+    private static boolean deflateInto(ByteBuffer input, ByteBuffer out) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!out.hasRemaining()) {
+                return false;
+            }
+            deflater.deflate(out);
+        }
+        return true;
+    }
+}
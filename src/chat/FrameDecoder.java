@@ -0,0 +1,157 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-connection decoder for {@link BinaryProtocol} frames, the binary counterpart of {@link LineDecoder}.
+ * <p>
+ * It takes over the connection's pooled read buffer after the handshake, including any bytes that came
+ * in behind it. A frame is handed out only once it is complete, and its fields are read in place. The
+ * buffer size is also the largest frame accepted; anything bigger is a {@link ProtocolException}.
+ * <p>
+ * Like LineDecoder, the buffer is always in write mode: unread data sits in {@code [start, position)}.
+ */
+public class FrameDecoder {
+
+    private ByteBuffer buffer;
+    private int start;          /// first byte of the current (or next) frame
+    private int frameEnd;       /// one past the current frame, == start when there is none
+    private int cursor;         /// next field of the current frame
+    private byte type;
+    private final CommandLine line = new CommandLine(); /// reused view handed out by rest()
+
+    public FrameDecoder(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        this.frameEnd = start;
+    }
+
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            compact();
+        }
+        return channel.read(buffer);
+    }
+
+    /**
+     * Drops the current frame and moves to the next one.
+     *
+     * @return {@code true} if a complete frame is ready, {@code false} if more bytes are needed
+     */
+    public boolean next() throws ProtocolException {
+        start = frameEnd;
+        int end = buffer.position();
+        if (start == end) {
+            buffer.clear(); /// everything consumed, cheap reset
+            start = frameEnd = 0;
+            return false;
+        }
+        if (end - start < 4) {
+            return false;
+        }
+        int length = buffer.getInt(start);
+        if (length < 1 || length > buffer.capacity() - 4) {
+            throw new ProtocolException("Bad frame length " + length + " (max " + (buffer.capacity() - 4) + ")");
+        }
+        if (end - start < 4 + length) {
+            return false; /// readFrom() compacts once the tail of the buffer is full
+        }
+        type = buffer.get(start + 4);
+        cursor = start + BinaryProtocol.HEADER_BYTES;
+        frameEnd = start + 4 + length;
+        return true;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    /// Reads a u16-length-prefixed UTF-8 field
+    public String readString() throws ProtocolException {
+        int length = readShort();
+        require(length);
+        String value = decode(cursor, cursor + length);
+        cursor += length;
+        return value;
+    }
+
+    public byte readByte() throws ProtocolException {
+        require(1);
+        return buffer.get(cursor++);
+    }
+
+    public long readLong() throws ProtocolException {
+        require(8);
+        long value = buffer.getLong(cursor);
+        cursor += 8;
+        return value;
+    }
+
+    /// The rest of the frame as a (trimmed) line, valid until the next call to {@link #next()}
+    public CommandLine rest() {
+        CommandLine rest = line.set(buffer, cursor, frameEnd);
+        cursor = frameEnd;
+        return rest;
+    }
+
+    /// The rest of the frame as a buffer of its own, valid until the next call to {@link #next()}
+    public ByteBuffer restBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(frameEnd).position(cursor);
+        cursor = frameEnd;
+        return view;
+    }
+
+    /// Bytes left in the current frame
+    public int remaining() {
+        return frameEnd - cursor;
+    }
+
+    public int getMaxFrameBytes() {
+        return buffer.capacity();
+    }
+
+    /// Hands the buffer back to the pool; the decoder must not be used afterwards
+    public void release(BufferPool pool) {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private int readShort() throws ProtocolException {
+        require(2);
+        int value = buffer.getShort(cursor) & 0xFFFF;
+        cursor += 2;
+        return value;
+    }
+
+    private void require(int bytes) throws ProtocolException {
+        if (frameEnd - cursor < bytes) {
+            throw new ProtocolException("Truncated field in frame type " + type);
+        }
+    }
+
+    private String decode(int from, int to) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(view).toString();
+    }
+
+    private void compact() {
+        int end = buffer.position();
+        if (start == 0) {
+            return;
+        }
+        buffer.limit(end).position(start);
+        buffer.compact();
+        frameEnd -= start;
+        cursor -= start;
+        start = 0;
+    }
+}
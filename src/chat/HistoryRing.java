@@ -0,0 +1,99 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last lines said in one broadcast scope (the whole server, or one room), kept as the exact bytes
+ * that were sent so a replay is a plain copy with no re-formatting.
+ * <p>
+ * Lines live back to back in one fixed {@code byte[]} arena that wraps around; a small index of
+ * offsets and lengths, addressed by sequence number, finds them again. Writing a new line evicts the
+ * oldest ones it overlaps, so memory is capped at the arena size plus the index, and {@link #record}
+ * never allocates.
+ */
+public class HistoryRing {
+
+    /// One page of history: the lines oldest first, and the sequence number of the first one
+    public record Page(ByteBuffer lines, long firstSeq, int count) {
+    }
+
+    private final byte[] arena;
+    private final int[] offsets;
+    private final int[] lengths;
+    private long oldestSeq = 0; /// first sequence number still in the ring
+    private long nextSeq = 0;   /// sequence number the next line gets
+    private int writePos = 0;
+
+    public HistoryRing(int maxBytes, int maxLines) {
+        this.arena = new byte[maxBytes];
+        this.offsets = new int[maxLines];
+        this.lengths = new int[maxLines];
+    }
+
+    /// Copies an encoded line into the ring; lines larger than the whole arena are not kept
+    public synchronized void record(SharedPayload payload) {
+        int length = payload.size();
+        if (length == 0 || length > arena.length || offsets.length == 0) {
+            return;
+        }
+        if (writePos + length > arena.length) {
+            /// wrap: lines left in the tail are the oldest ones, drop them so eviction continues in order from 0
+            evictOverlapping(writePos, arena.length);
+            writePos = 0;
+        }
+        evictOverlapping(writePos, writePos + length);
+        if (nextSeq - oldestSeq == offsets.length) {
+            oldestSeq++; /// index full
+        }
+
+        payload.copyTo(arena, writePos);
+        int slot = (int) (nextSeq % offsets.length);
+        offsets[slot] = writePos;
+        lengths[slot] = length;
+        nextSeq++;
+        writePos += length;
+    }
+
+    /**
+     * Up to {@code max} lines recorded before sequence number {@code before}, oldest first, copied into
+     * one buffer. Pass {@link #nextSeq()} to get the most recent lines.
+     */
+    public synchronized Page page(long before, int max) {
+        long end = Math.min(before, nextSeq);
+        long start = Math.max(oldestSeq, end - Math.max(max, 0));
+        if (start >= end) {
+            return new Page(ByteBuffer.allocate(0), end, 0);
+        }
+        int total = 0;
+        for (long seq = start; seq < end; seq++) {
+            total += lengths[(int) (seq % offsets.length)];
+        }
+        ByteBuffer lines = ByteBuffer.allocate(total);
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq % offsets.length);
+            lines.put(arena, offsets[slot], lengths[slot]);
+        }
+        lines.flip();
+        return new Page(lines, start, (int) (end - start));
+    }
+
+    public synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    public synchronized int size() {
+        return (int) (nextSeq - oldestSeq);
+    }
+
+    private void evictOverlapping(int from, int to) {
+        while (oldestSeq < nextSeq) {
+            int slot = (int) (oldestSeq % offsets.length);
+            int start = offsets[slot];
+            int end = start + lengths[slot];
+            if (end <= from || start >= to) {
+                return; /// lines are laid out in order, so the first one that survives ends the scan
+            }
+            oldestSeq++;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Per-connection accumulating decoder that splits the incoming byte stream on {@code '\n'}.
+ * <p>
+ * Bytes stay in one pooled buffer between reads, so a line split over several packets, several lines
+ * in one packet, and a UTF-8 character cut in half by a read all come out right: a newline byte never
+ * occurs inside a multi-byte UTF-8 sequence, so only whole lines are ever decoded.
+ * <p>
+ * The buffer is always in write mode: unread data sits in {@code [start, position)}.
+ * A line longer than the buffer is dropped up to its newline and reported via {@link #pollOverflow()}.
+ */
+public class LineDecoder {
+
+    private ByteBuffer buffer;
+    private int start = 0;      /// first byte not yet handed out
+    private int scanned = 0;    /// bytes before this index are known not to be '\n'
+    private boolean discarding = false; /// skipping the rest of an over-long line
+    private boolean overflow = false;
+    private final CommandLine line = new CommandLine(); /// reused view handed out by nextLine()
+
+    public LineDecoder(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /// Reads whatever the channel has into the free space of the buffer
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining()) {
+            compact();
+        }
+        return channel.read(buffer);
+    }
+
+    /**
+     * @return the next complete line, trimmed, as a view into the buffer that is valid until the next call,
+     * or {@code null} if only a partial line is buffered
+     */
+    public CommandLine nextLine() {
+        int end = buffer.position();
+        for (int i = Math.max(scanned, start); i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            int lineStart = start;
+            start = i + 1;
+            scanned = start;
+            if (discarding) {
+                discarding = false; /// found the end of the over-long line, resume normal framing
+                continue;
+            }
+            return line.set(buffer, lineStart, i); /// the trim also drops a trailing '\r'
+        }
+
+        scanned = end;
+        if (discarding || (start == 0 && !buffer.hasRemaining())) {
+            /// A whole buffer without a newline: drop it and skip up to the next '\n'
+            if (!discarding) {
+                discarding = true;
+                overflow = true;
+            }
+            buffer.clear();
+            start = 0;
+            scanned = 0;
+        } else if (start == end) {
+            buffer.clear(); /// everything consumed, cheap reset
+            start = 0;
+            scanned = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Moves up to {@code max} buffered bytes that were not part of a line into {@code out}.
+     * Used when the stream switches from text to raw file data mid-packet.
+     */
+    public long drainTo(WritableByteChannel out, long max) throws IOException {
+        int available = buffer.position() - start;
+        int count = (int) Math.min(available, max);
+        if (count <= 0) {
+            return 0;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(start + count).position(start);
+        while (view.hasRemaining()) {
+            out.write(view);
+        }
+        return skip(count);
+    }
+
+    /// Throws away up to {@code max} buffered bytes that were not part of a line
+    public long skip(long max) {
+        int count = (int) Math.min(buffer.position() - start, max);
+        if (count <= 0) {
+            return 0;
+        }
+        start += count;
+        scanned = start;
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+            scanned = 0;
+        }
+        return count;
+    }
+
+    /// Bytes read but not yet handed out
+    public int buffered() {
+        return buffer.position() - start;
+    }
+
+    /// The {@code index}-th unread byte, without consuming it
+    public byte peek(int index) {
+        return buffer.get(start + index);
+    }
+
+    /**
+     * Hands the buffer, with whatever is still unread, to a {@link FrameDecoder} when the connection switches
+     * to the binary protocol. This decoder must not be used afterwards.
+     */
+    public FrameDecoder switchToFrames() {
+        FrameDecoder frames = new FrameDecoder(buffer, start);
+        buffer = null;
+        return frames;
+    }
+
+    /// @return {@code true} once after an over-long line was dropped
+    public boolean pollOverflow() {
+        boolean result = overflow;
+        overflow = false;
+        return result;
+    }
+
+    public int getMaxLineBytes() {
+        return buffer.capacity();
+    }
+
+    /// Hands the buffer back to the pool; the decoder must not be used afterwards
+    public void release(BufferPool pool) {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private void compact() {
+        int end = buffer.position();
+        if (start == 0) {
+            return;
+        }
+        buffer.limit(end).position(start);
+        buffer.compact(); /// moves [start, end) to the front and leaves the buffer in write mode
+        scanned -= start;
+        start = 0;
+    }
+}
@@ -0,0 +1,217 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Offline mailboxes: private messages for users who are not connected, kept until they connect
+ * or someone takes the name with {@code /nick}.
+ * <p>
+ * Each mailbox is a file {@code <hex of the name>.mbox} in {@code chat.mailbox.dir}, appended to on
+ * every deposit, so nothing is lost on a restart. The mailboxes used most recently are also kept in
+ * memory (LRU, {@code chat.mailbox.cacheSize}), so they are handed out without reading the file. A
+ * mailbox holds at most {@code chat.mailbox.maxMessages} messages, at most {@code chat.mailbox.maxUsers}
+ * names can have mail waiting, and one connection can leave at most {@code chat.mailbox.maxPerSender}
+ * messages in all mailboxes together, so a single client can't fill the disk with mail for made-up names.
+ * That quota belongs to the connection, not the name, so a {@code /nick} doesn't renew it.
+ * <p>
+ * The server only looks here when a recipient is not online, and {@link #hasMail} is a lookup in a
+ * concurrent map, so the normal path pays nothing. Everything else runs under the store's lock and
+ * may block on the disk; with {@code -Dchat.workers} the server calls it from a worker thread.
+ * <p>
+ * Record layout (big-endian): {@code long sentMillis, short + bytes from, int + bytes text}. A record cut
+ * short by a crash is ignored.
+ */
+public class MailboxStore {
+
+    /// One waiting private message
+    public record Mail(long sentMillis, String from, String text) {
+    }
+
+    /// What {@link #deposit} did with a message
+    public enum Deposit {
+        SAVED,
+        /// the recipient's mailbox is full, or too many names have mail waiting
+        RECIPIENT_FULL,
+        /// the sender's connection already left chat.mailbox.maxPerSender messages
+        SENDER_FULL,
+        /// the file could not be written
+        FAILED
+    }
+
+    private final Path directory;
+    private final int maxMessages;
+    private final int maxUsers;
+    private final int maxPerSender;
+    /// Name -> messages waiting, for every non-empty mailbox; read without the lock by hasMail()
+    private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+    /// Complete contents of the most recently used mailboxes, eldest evicted first
+    private final LinkedHashMap<String, List<Mail>> cache;
+
+    public MailboxStore(Path directory, int maxMessages, int maxUsers, int maxPerSender, int cacheSize) throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxUsers = maxUsers;
+        this.maxPerSender = maxPerSender;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Mail>> eldest) {
+                return size() > cacheSize; /// the file still has it
+            }
+        };
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(".mbox")) {
+                    String name = new String(HexFormat.of().parseHex(fileName, 0, fileName.length() - 5), StandardCharsets.UTF_8);
+                    List<Mail> mail = read(file);
+                    if (!mail.isEmpty()) {
+                        counts.put(name, mail.size());
+                    }
+                }
+            }
+        }
+    }
+
+    /// @return the store configured with -Dchat.mailbox.*, or null unless -Dchat.mailbox.dir names a directory
+    public static MailboxStore fromSystemProperties() {
+        String dir = System.getProperty("chat.mailbox.dir", "");
+        if (dir.isEmpty()) {
+            return null;
+        }
+        try {
+            MailboxStore store = new MailboxStore(Path.of(dir),
+                    Integer.getInteger("chat.mailbox.maxMessages", 100),
+                    Integer.getInteger("chat.mailbox.maxUsers", 10_000),
+                    Integer.getInteger("chat.mailbox.maxPerSender", 20),
+                    Integer.getInteger("chat.mailbox.cacheSize", 256));
+            ChatServer.logger.info("Mailboxes in {}: {} message(s) waiting for {} user(s)", dir,
+                    store.getWaitingCount(), store.getMailboxCount());
+            return store;
+        } catch (IOException | RuntimeException e) {
+            ChatServer.logger.severe("Cannot open mailboxes in {}, offline messages are off: {}", dir, e.getMessage());
+            return null;
+        }
+    }
+
+    /// Lock-free: whether {@code name} has anything waiting
+    public boolean hasMail(String name) {
+        return counts.containsKey(name);
+    }
+
+    /// Saves a message for an offline user, unless one of the caps says no
+    /// @param alreadySaved how many messages the sender's connection has saved so far
+    public synchronized Deposit deposit(String recipient, String from, String text, int alreadySaved) {
+        if (alreadySaved >= maxPerSender) {
+            return Deposit.SENDER_FULL;
+        }
+        int count = counts.getOrDefault(recipient, 0);
+        if (count >= maxMessages || (count == 0 && counts.size() >= maxUsers)) {
+            return Deposit.RECIPIENT_FULL;
+        }
+        Mail mail = new Mail(System.currentTimeMillis(), from, text);
+        try (FileChannel file = FileChannel.open(fileFor(recipient),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer record = encode(mail);
+            while (record.hasRemaining()) {
+                file.write(record);
+            }
+        } catch (IOException e) {
+            ChatServer.logger.severe("❌ Failed to save mail for {}: {}", recipient, e.getMessage());
+            return Deposit.FAILED;
+        }
+        counts.put(recipient, count + 1);
+        List<Mail> cached = cache.get(recipient);
+        if (cached != null) {
+            cached.add(mail);
+        } else if (count == 0) {
+            cached = new ArrayList<>();
+            cached.add(mail);
+            cache.put(recipient, cached); /// a new mailbox is complete in memory from its first message
+        }
+        return Deposit.SAVED;
+    }
+
+    /// Removes and returns everything waiting for {@code name}, oldest first; empty if there is nothing
+    public synchronized List<Mail> take(String name) {
+        if (!counts.containsKey(name)) {
+            return List.of();
+        }
+        List<Mail> mail = cache.remove(name);
+        Path file = fileFor(name);
+        try {
+            if (mail == null) {
+                mail = read(file);
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            ChatServer.logger.severe("❌ Failed to read mail for {}: {}", name, e.getMessage());
+            return List.of(); /// still counted, the next connect tries again
+        }
+        counts.remove(name);
+        return mail;
+    }
+
+    public int getMailboxCount() {
+        return counts.size();
+    }
+
+    public long getWaitingCount() {
+        long waiting = 0;
+        for (int count : counts.values()) {
+            waiting += count;
+        }
+        return waiting;
+    }
+
+    private Path fileFor(String name) {
+        return directory.resolve(HexFormat.of().formatHex(name.getBytes(StandardCharsets.UTF_8)) + ".mbox");
+    }
+
+    private static ByteBuffer encode(Mail mail) {
+        byte[] from = mail.from().getBytes(StandardCharsets.UTF_8);
+        byte[] text = mail.text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(8 + 2 + from.length + 4 + text.length);
+        record.putLong(mail.sentMillis()).putShort((short) from.length).put(from).putInt(text.length).put(text);
+        return record.flip();
+    }
+
+    private static List<Mail> read(Path file) throws IOException {
+        List<Mail> mail = new ArrayList<>();
+        long size = Files.size(file);
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            while (true) {
+                long sent = data.readLong();
+                byte[] from = new byte[data.readUnsignedShort()];
+                data.readFully(from);
+                int length = data.readInt();
+                if (length < 0 || length > size) {
+                    return mail; /// garbage after a torn write, nothing readable follows
+                }
+                byte[] text = new byte[length];
+                data.readFully(text);
+                mail.add(new Mail(sent, new String(from, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8)));
+            }
+        } catch (EOFException e) {
+            return mail; /// end of the file, or a record cut short
+        }
+    }
+}
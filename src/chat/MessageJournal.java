@@ -0,0 +1,555 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only binary journal of chat, private and presence events.
+ * <p>
+ * Records go into fixed-size segment files that are memory-mapped, so an append is a copy into the
+ * page cache under a short lock. A background thread forces the pages written since its last pass to
+ * disk every {@code fsyncMillis}: appends arriving in the same interval share one {@code msync}
+ * (group commit), and a crash loses at most that interval. A segment that fills up is handed to the same
+ * thread, so sealing it never forces 64 MB to disk on the appending event loop.
+ * <p>
+ * Every segment {@code <firstSeq>.seg} has a sidecar {@code <firstSeq>.idx}, a sparse index with one
+ * (seq, timestamp, position) entry per {@code indexInterval} bytes. Time-range reads binary-search it
+ * and scan forward from there; reads of the newest events walk it backwards. On startup the segments are only mapped: the end of each one is found
+ * by scanning forward from its last index entry, at most one interval of records.
+ * <p>
+ * Record layout (big-endian):
+ * <pre>
+ * int length      bytes after the crc field; 0 marks the end of the written data
+ * int crc32c      over those bytes
+ * long seq
+ * long timestamp  epoch millis, never decreasing
+ * byte type
+ * short + bytes   from (UTF-8)
+ * short + bytes   scope: "" for the main chat, "#room", or the recipient of a private message
+ * int + bytes     text (UTF-8)
+ * </pre>
+ */
+public class MessageJournal {
+
+    public enum Type { CHAT, PRIVATE, PRESENCE }
+
+    /// One journaled event, as read back
+    public record Entry(long seq, long timestamp, Type type, String from, String scope, String text) {
+    }
+
+    private static final int HEADER_BYTES = 8;          /// length + crc
+    private static final int FIXED_BODY_BYTES = 8 + 8 + 1 + 2 + 2 + 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 4;
+    private static final Type[] TYPES = Type.values();
+
+    /// One mapped segment file plus its sparse index
+    private static final class Segment {
+        final long firstSeq;
+        final Path path;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        volatile int indexCount; /// written after the entry itself, so readers only see complete entries
+        int lastIndexedPosition = -1;
+        volatile int end;   /// records in [0, end) are complete; readers never look past it
+        int forcedEnd;      /// data before this is on disk, only touched by the sync thread
+        int forcedIndexCount;
+
+        Segment(long firstSeq, Path path, MappedByteBuffer data, MappedByteBuffer index) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.data = data;
+            this.index = index;
+        }
+
+        long indexSeq(int i) {
+            return index.getLong(i * INDEX_ENTRY_BYTES);
+        }
+
+        long indexTimestamp(int i) {
+            return index.getLong(i * INDEX_ENTRY_BYTES + 8);
+        }
+
+        int indexPosition(int i) {
+            return index.getInt(i * INDEX_ENTRY_BYTES + 16);
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final int maxSegments;
+    private final long fsyncMillis;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder(); /// only used under the lock
+    private final CRC32C crc = new CRC32C();                                    /// only used under the lock
+
+    private volatile Segment[] segments; /// oldest first, the last one is being written
+    private final List<Segment> sealedUnforced = new ArrayList<>(); /// rolled over, the sync thread still has to force them; guarded by this
+    private long nextSeq;
+    private long lastTimestamp;
+    private long appendCount;
+    private volatile long syncCount;
+    private final Thread syncer;
+    private volatile boolean closed = false;
+
+    public MessageJournal(Path dir, int segmentBytes, int indexInterval, int maxSegments, long fsyncMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.maxSegments = maxSegments;
+        this.fsyncMillis = fsyncMillis;
+        Files.createDirectories(dir);
+        recover();
+        this.syncer = new Thread(this::syncLoop, "journal-sync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "journal-shutdown"));
+    }
+
+    /// Builds a journal from the {@code chat.journal.*} system properties, or returns {@code null} unless {@code chat.journal} names a directory
+    public static MessageJournal fromSystemProperties() {
+        String dir = System.getProperty("chat.journal", "");
+        if (dir.isBlank()) {
+            return null;
+        }
+        try {
+            return new MessageJournal(Path.of(dir),
+                    Integer.getInteger("chat.journal.segmentBytes", 64 * 1024 * 1024),
+                    Integer.getInteger("chat.journal.indexInterval", 4096),
+                    Integer.getInteger("chat.journal.maxSegments", 16),
+                    Long.getLong("chat.journal.fsyncMillis", 100));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Appends one event. Only copies into the mapped segment; durability follows within {@code fsyncMillis}.
+     *
+     * @return the record's sequence number, or -1 if it is larger than a whole segment
+     */
+    public synchronized long append(Type type, String from, String scope, String text) {
+        if (closed) {
+            return -1;
+        }
+        Segment segment = segments[segments.length - 1];
+        int start = segment.end;
+        if (!write(segment, start, type, from, scope, text)) {
+            if (start == 0) {
+                return -1; /// does not fit even in an empty segment
+            }
+            segment = roll();
+            start = 0;
+            if (!write(segment, start, type, from, scope, text)) {
+                return -1;
+            }
+        }
+        appendCount++;
+        return nextSeq++;
+    }
+
+    /// Encodes a record at {@code start}; returns {@code false} without publishing anything if it does not fit
+    private boolean write(Segment segment, int start, Type type, String from, String scope, String text) {
+        if (start + HEADER_BYTES + FIXED_BODY_BYTES > segmentBytes) {
+            return false;
+        }
+        ByteBuffer out = segment.data.duplicate();
+        out.limit(segmentBytes).position(start + HEADER_BYTES);
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        out.putLong(nextSeq).putLong(timestamp).put((byte) type.ordinal());
+        if (!putString(out, from, 2) || !putString(out, scope, 2) || !putString(out, text, 4)) {
+            return false;
+        }
+        int length = out.position() - start - HEADER_BYTES;
+
+        crc.reset();
+        ByteBuffer body = segment.data.duplicate();
+        body.limit(start + HEADER_BYTES + length).position(start + HEADER_BYTES);
+        crc.update(body);
+        segment.data.putInt(start + 4, (int) crc.getValue());
+        segment.data.putInt(start, length);
+        int next = start + HEADER_BYTES + length;
+        if (next + 4 <= segmentBytes) {
+            segment.data.putInt(next, 0); /// explicit end marker, in case an older run left bytes here
+        }
+
+        lastTimestamp = timestamp;
+        if (segment.lastIndexedPosition < 0 || start - segment.lastIndexedPosition >= indexInterval) {
+            addIndexEntry(segment, nextSeq, timestamp, start);
+        }
+        segment.end = next; /// publish to readers
+        return true;
+    }
+
+    private boolean putString(ByteBuffer out, String value, int lengthBytes) {
+        if (out.remaining() < lengthBytes) {
+            return false;
+        }
+        int lengthAt = out.position();
+        out.position(lengthAt + lengthBytes);
+        CoderResult result = encoder.reset().encode(CharBuffer.wrap(value), out, true);
+        if (result.isOverflow()) {
+            return false;
+        }
+        encoder.flush(out);
+        int length = out.position() - lengthAt - lengthBytes;
+        if (lengthBytes == 2) {
+            if (length > 0xFFFF) {
+                return false;
+            }
+            out.putShort(lengthAt, (short) length);
+        } else {
+            out.putInt(lengthAt, length);
+        }
+        return true;
+    }
+
+    private void addIndexEntry(Segment segment, long seq, long timestamp, int position) {
+        int at = segment.indexCount * INDEX_ENTRY_BYTES;
+        if (at + INDEX_ENTRY_BYTES > segment.index.capacity()) {
+            return; /// cannot happen with indexInterval-spaced entries, but never overrun the mapping
+        }
+        segment.index.putLong(at, seq).putLong(at + 8, timestamp).putInt(at + 16, position);
+        segment.indexCount++;
+        segment.lastIndexedPosition = position;
+    }
+
+    /// Seals the current segment and starts a new one; runs under the lock
+    /// The sealed segment's unforced tail is left to the sync thread, appends go on as soon as the new one is mapped
+    private Segment roll() {
+        sealedUnforced.add(segments[segments.length - 1]);
+        Segment fresh;
+        try {
+            fresh = openSegment(nextSeq);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create journal segment", e);
+        }
+        List<Segment> next = new ArrayList<>(Arrays.asList(segments));
+        next.add(fresh);
+        while (maxSegments > 0 && next.size() > maxSegments) {
+            Segment oldest = next.remove(0);
+            try {
+                Files.deleteIfExists(oldest.path);
+                Files.deleteIfExists(indexPath(oldest.path));
+            } catch (IOException e) {
+                ChatServer.logger.severe("Failed to delete journal segment {}: {}", oldest.path, e.getMessage());
+            }
+        }
+        segments = next.toArray(new Segment[0]);
+        return fresh;
+    }
+
+    /**
+     * Events with {@code fromMillis <= timestamp <= toMillis}, oldest first, at most {@code max} of them.
+     * Binary-searches the sparse index for where to start, so the cost follows the range, not the journal.
+     * Safe to call while other threads append.
+     */
+    public List<Entry> read(long fromMillis, long toMillis, int max) {
+        List<Entry> result = new ArrayList<>();
+        Segment[] current = segments;
+        int first = 0;
+        for (int i = 1; i < current.length; i++) {
+            if (current[i].indexCount > 0 && current[i].indexTimestamp(0) <= fromMillis) {
+                first = i; /// later segments start at or before fromMillis, so the range begins there
+            }
+        }
+        for (int i = first; i < current.length && result.size() < max; i++) {
+            Segment segment = current[i];
+            int position = segment.indexCount == 0 ? 0 : segment.indexPosition(floorIndex(segment, fromMillis));
+            if (!scan(segment, position, segment.end, e -> e.timestamp() > toMillis, e -> e.timestamp() >= fromMillis, result, max)) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The newest {@code max} events matching {@code filter}, oldest first. Walks the sparse index backwards
+     * one interval at a time, so only the tail of the journal is touched.
+     */
+    public List<Entry> tail(int max, Predicate<Entry> filter) {
+        List<List<Entry>> chunks = new ArrayList<>();
+        int found = 0;
+        Segment[] current = segments;
+        for (int s = current.length - 1; s >= 0 && found < max; s--) {
+            Segment segment = current[s];
+            int to = segment.end;
+            for (int i = segment.indexCount - 1; i >= 0 && found < max; i--) {
+                List<Entry> chunk = new ArrayList<>();
+                scan(segment, segment.indexPosition(i), to, e -> false, filter, chunk, Integer.MAX_VALUE);
+                chunks.add(chunk);
+                found += chunk.size();
+                to = segment.indexPosition(i);
+            }
+        }
+        List<Entry> result = new ArrayList<>(Math.min(found, max));
+        Collections.reverse(chunks);
+        for (List<Entry> chunk : chunks) {
+            result.addAll(chunk);
+        }
+        return result.subList(Math.max(0, result.size() - max), result.size());
+    }
+
+    /// Last index entry with timestamp {@code < millis}, or 0
+    private static int floorIndex(Segment segment, long millis) {
+        int low = 0;
+        int high = segment.indexCount - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segment.indexTimestamp(mid) < millis) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /// Decodes records in [from, to); returns {@code false} once {@code stop} matched or {@code max} was reached
+    private static boolean scan(Segment segment, int from, int to, Predicate<Entry> stop, Predicate<Entry> filter,
+                                List<Entry> out, int max) {
+        ByteBuffer in = segment.data.duplicate();
+        int position = from;
+        while (position < to) {
+            int length = in.getInt(position);
+            in.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+            Entry entry = new Entry(in.getLong(), in.getLong(), TYPES[in.get()],
+                    getString(in, in.getShort() & 0xFFFF), getString(in, in.getShort() & 0xFFFF), getString(in, in.getInt()));
+            in.limit(in.capacity());
+            position += HEADER_BYTES + length;
+            if (stop.test(entry)) {
+                return false;
+            }
+            if (filter.test(entry)) {
+                out.add(entry);
+                if (out.size() >= max) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String getString(ByteBuffer in, int length) {
+        ByteBuffer bytes = in.slice();
+        bytes.limit(length);
+        in.position(in.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /// Sequence number the next append will get
+    public synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    public synchronized long getAppendCount() {
+        return appendCount;
+    }
+
+    /// Number of group commits that actually wrote something
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /// Forces everything appended so far and stops the sync thread
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        syncer.interrupt();
+        try {
+            syncer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(fsyncMillis);
+            } catch (InterruptedException e) {
+                continue; /// closing: close() does the final sync
+            }
+            sync();
+        }
+    }
+
+    // One group commit: force the pages written since the last pass, outside the append lock
+    private void sync() {
+        Segment segment;
+        int end;
+        int indexCount;
+        List<Segment> sealed = List.of();
+        synchronized (this) {
+            if (!sealedUnforced.isEmpty()) {
+                sealed = new ArrayList<>(sealedUnforced);
+                sealedUnforced.clear();
+            }
+            segment = segments[segments.length - 1];
+            end = segment.end;
+            indexCount = segment.indexCount;
+        }
+        for (Segment full : sealed) {
+            force(full, full.end, full.indexCount); /// nothing is appended to a sealed segment any more
+        }
+        force(segment, end, indexCount);
+    }
+
+    private void force(Segment segment, int end, int indexCount) {
+        synchronized (segment) { /// the sync thread and close() may both get here
+            if (end > segment.forcedEnd) {
+                segment.data.force(segment.forcedEnd, Math.min(end + 4, segmentBytes) - segment.forcedEnd);
+                segment.forcedEnd = end;
+                syncCount++;
+            }
+            if (indexCount > segment.forcedIndexCount) {
+                int from = segment.forcedIndexCount * INDEX_ENTRY_BYTES;
+                segment.index.force(from, indexCount * INDEX_ENTRY_BYTES - from);
+                segment.forcedIndexCount = indexCount;
+            }
+        }
+    }
+
+    // Maps every existing segment and finds where the written data ends; no record is replayed
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+        List<Segment> recovered = new ArrayList<>();
+        long expectedSeq = -1;
+        for (int f = 0; f < files.size(); f++) {
+            Path file = files.get(f);
+            long firstSeq = Long.parseLong(file.getFileName().toString().replace(".seg", ""));
+            if (expectedSeq >= 0 && firstSeq != expectedSeq) {
+                /// Move them out of the way: a later roll() reaching the same seq would otherwise map the stale file and index
+                ChatServer.logger.log(Level.WARNING, "Journal segment {} does not follow seq {}: it and {} later segment(s) renamed to *.orphaned",
+                        file, expectedSeq, files.size() - f - 1);
+                for (Path orphan : files.subList(f, files.size())) {
+                    setAside(orphan);
+                    setAside(indexPath(orphan));
+                }
+                break;
+            }
+            Segment segment = mapSegment(firstSeq, file);
+            expectedSeq = findEnd(segment);
+            recovered.add(segment);
+        }
+        if (recovered.isEmpty()) {
+            recovered.add(openSegment(0));
+            expectedSeq = 0;
+        }
+        Segment last = recovered.get(recovered.size() - 1);
+        segments = recovered.toArray(new Segment[0]);
+        nextSeq = expectedSeq;
+        if (last.indexCount > 0) {
+            lastTimestamp = last.indexTimestamp(last.indexCount - 1);
+        }
+        ChatServer.logger.info("Journal {} recovered: {} segment(s), next seq {}", dir, segments.length, nextSeq);
+    }
+
+    /// Validates records from the last index entry on, sets {@code end}, and returns the next seq
+    private long findEnd(Segment segment) {
+        /// Index entries pointing past the last valid record (torn write before a crash) are dropped on the way
+        while (true) {
+            int i = segment.indexCount - 1;
+            int position = i < 0 ? 0 : segment.indexPosition(i);
+            long seq = i < 0 ? segment.firstSeq : segment.indexSeq(i);
+            ByteBuffer in = segment.data.duplicate();
+            while (position + HEADER_BYTES <= segmentBytes) {
+                int length = in.getInt(position);
+                if (length < FIXED_BODY_BYTES || position + HEADER_BYTES + length > segmentBytes
+                        || in.getLong(position + HEADER_BYTES) != seq) {
+                    break;
+                }
+                crc.reset();
+                in.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+                crc.update(in);
+                in.limit(in.capacity());
+                if ((int) crc.getValue() != in.getInt(position + 4)) {
+                    break;
+                }
+                long timestamp = in.getLong(position + HEADER_BYTES + 8);
+                if (segment.lastIndexedPosition < 0 || position - segment.lastIndexedPosition >= indexInterval) {
+                    addIndexEntry(segment, seq, timestamp, position); /// entry the crash kept from being written
+                }
+                lastTimestamp = timestamp;
+                position += HEADER_BYTES + length;
+                seq++;
+            }
+            if (i >= 0 && position == segment.indexPosition(i) && i == segment.indexCount - 1 && seq == segment.indexSeq(i)) {
+                segment.index.put(i * INDEX_ENTRY_BYTES, new byte[INDEX_ENTRY_BYTES]); /// the indexed record itself is torn
+                segment.indexCount--;
+                segment.lastIndexedPosition = segment.indexCount == 0 ? -1 : segment.indexPosition(segment.indexCount - 1);
+                continue;
+            }
+            segment.end = position;
+            segment.forcedEnd = position;
+            segment.forcedIndexCount = segment.indexCount;
+            return seq;
+        }
+    }
+
+    private Segment openSegment(long firstSeq) throws IOException {
+        return mapSegment(firstSeq, dir.resolve(String.format("%020d.seg", firstSeq)));
+    }
+
+    private Segment mapSegment(long firstSeq, Path file) throws IOException {
+        MappedByteBuffer data;
+        MappedByteBuffer index;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            data = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes); /// the mapping outlives the channel
+        }
+        long indexBytes = ((long) segmentBytes / indexInterval + 2) * INDEX_ENTRY_BYTES;
+        try (FileChannel channel = FileChannel.open(indexPath(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+        }
+        Segment segment = new Segment(firstSeq, file, data, index);
+        /// Timestamps are never 0, so the first all-zero slot ends the index
+        while ((segment.indexCount + 1) * INDEX_ENTRY_BYTES <= indexBytes && segment.indexTimestamp(segment.indexCount) != 0) {
+            segment.indexCount++;
+        }
+        if (segment.indexCount > 0) {
+            segment.lastIndexedPosition = segment.indexPosition(segment.indexCount - 1);
+        }
+        return segment;
+    }
+
+    private static void setAside(Path file) throws IOException {
+        if (Files.exists(file)) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".orphaned"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Path indexPath(Path segmentFile) {
+        return segmentFile.resolveSibling(segmentFile.getFileName().toString().replace(".seg", ".idx"));
+    }
+}
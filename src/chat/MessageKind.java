@@ -0,0 +1,13 @@
+package chat;
+
+/**
+ * What a queued outbound line is, so the slow-consumer policy can treat each class differently.
+ */
+public enum MessageKind {
+    /// broadcast and room chat lines
+    CHAT,
+    /// join/leave/rename notices
+    PRESENCE,
+    /// private messages and replies to the client's own commands
+    DIRECT
+}
@@ -0,0 +1,239 @@
+package chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the hot paths, cheap enough to leave on in production.
+ * <p>
+ * Counters are {@link LongAdder}s and histograms are {@link LatencyHistogram}s: both are striped, so
+ * event loops recording at the same time don't contend, and recording never allocates or locks. The
+ * cost is paid when someone reads them, through {@code /stats} or JMX ({@code chat:type=Metrics}).
+ * Queue depths are not tracked on every write; they are summed over the sessions when read.
+ */
+public class Metrics implements MetricsMBean {
+
+    public final LongAdder connectionsAccepted = new LongAdder();
+    public final LongAdder connectionsClosed = new LongAdder();
+    public final LongAdder idleDisconnects = new LongAdder(); /// closed by the idle reaper, also counted in connectionsClosed
+    public final LongAdder heartbeats = new LongAdder();
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder writes = new LongAdder(); /// write syscalls, a gathering write counts once
+    public final LongAdder messagesIn = new LongAdder();
+    public final LongAdder broadcasts = new LongAdder();
+    public final LongAdder deliveries = new LongAdder(); /// lines queued to a client, all kinds
+    public final LongAdder compressedIn = new LongAdder();  /// frame bytes before FrameCompression
+    public final LongAdder compressedOut = new LongAdder(); /// the same frames after it
+
+    /// Busy time of one event-loop pass: tasks plus ready keys, not the time blocked in select()
+    public final LatencyHistogram loopIteration = new LatencyHistogram("loop iteration");
+    /// Time handleMessage() takes for one line
+    public final LatencyHistogram handleMessage = new LatencyHistogram("handle message");
+    /// From encoding a line (right after the read that produced it) to its last byte going into the socket
+    public final LatencyHistogram deliveryLatency = new LatencyHistogram("read to deliver");
+    /// Time a worker thread spends on one piece of blocking work (-Dchat.workers)
+    public final LatencyHistogram blockingWork = new LatencyHistogram("blocking work");
+    /// Recipients per broadcast
+    public final LatencyHistogram fanOut = new LatencyHistogram("fan-out");
+
+    private final SessionRegistry sessions;
+
+    public Metrics(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    /// Registers the JMX view; a failure is logged, the server runs without it
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            ChatServer.logger.severe("Could not register metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    /// Multi-line text for {@code /stats}
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append("connections: accepted=").append(getConnectionsAccepted())
+                .append(" closed=").append(getConnectionsClosed())
+                .append(" idle=").append(getIdleDisconnects())
+                .append(" heartbeats=").append(getHeartbeats())
+                .append(" online=").append(getOnlineUsers());
+        out.append("\ntraffic: in=").append(getBytesIn()).append("B out=").append(getBytesOut())
+                .append("B writes=").append(getWriteCalls())
+                .append(" messages=").append(getMessagesIn())
+                .append(" broadcasts=").append(getBroadcasts())
+                .append(" deliveries=").append(getDeliveries());
+        out.append("\ncompression: in=").append(getCompressedInBytes()).append("B out=").append(getCompressedOutBytes()).append('B');
+        out.append("\nqueues: total=").append(getTotalQueuedBytes()).append("B max=").append(getMaxQueuedBytes()).append('B');
+        appendLatency(out, loopIteration);
+        appendLatency(out, handleMessage);
+        appendLatency(out, deliveryLatency);
+        appendLatency(out, blockingWork);
+        LatencyHistogram.Snapshot fan = fanOut.snapshot();
+        out.append("\n").append(fanOut.getName()).append(": n=").append(fan.getCount())
+                .append(" p50=").append(fan.percentile(0.5))
+                .append(" p99=").append(fan.percentile(0.99))
+                .append(" max=").append(fan.max());
+        return out.toString();
+    }
+
+    private static void appendLatency(StringBuilder out, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot s = histogram.snapshot();
+        out.append("\n").append(histogram.getName()).append(" (us): n=").append(s.getCount())
+                .append(" p50=").append(micros(s.percentile(0.5)))
+                .append(" p99=").append(micros(s.percentile(0.99)))
+                .append(" p999=").append(micros(s.percentile(0.999)))
+                .append(" max=").append(micros(s.max()));
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getCompressedInBytes() {
+        return compressedIn.sum();
+    }
+
+    @Override
+    public long getCompressedOutBytes() {
+        return compressedOut.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    @Override
+    public long getHeartbeats() {
+        return heartbeats.sum();
+    }
+
+    @Override
+    public int getOnlineUsers() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getTotalQueuedBytes() {
+        long total = 0;
+        for (ClientSession session : sessions.sessions()) {
+            total += session.getOutbound().getQueuedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxQueuedBytes() {
+        long max = 0;
+        for (ClientSession session : sessions.sessions()) {
+            max = Math.max(max, session.getOutbound().getQueuedBytes());
+        }
+        return max;
+    }
+
+    @Override
+    public long getLoopIterationP50Micros() {
+        return micros(loopIteration.snapshot().percentile(0.5));
+    }
+
+    @Override
+    public long getLoopIterationP99Micros() {
+        return micros(loopIteration.snapshot().percentile(0.99));
+    }
+
+    @Override
+    public long getLoopIterationP999Micros() {
+        return micros(loopIteration.snapshot().percentile(0.999));
+    }
+
+    @Override
+    public long getHandleMessageP50Micros() {
+        return micros(handleMessage.snapshot().percentile(0.5));
+    }
+
+    @Override
+    public long getHandleMessageP99Micros() {
+        return micros(handleMessage.snapshot().percentile(0.99));
+    }
+
+    @Override
+    public long getHandleMessageP999Micros() {
+        return micros(handleMessage.snapshot().percentile(0.999));
+    }
+
+    @Override
+    public long getDeliveryLatencyP50Micros() {
+        return micros(deliveryLatency.snapshot().percentile(0.5));
+    }
+
+    @Override
+    public long getDeliveryLatencyP99Micros() {
+        return micros(deliveryLatency.snapshot().percentile(0.99));
+    }
+
+    @Override
+    public long getDeliveryLatencyP999Micros() {
+        return micros(deliveryLatency.snapshot().percentile(0.999));
+    }
+
+    @Override
+    public long getFanOutP50() {
+        return fanOut.snapshot().percentile(0.5);
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return fanOut.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return fanOut.snapshot().max();
+    }
+}
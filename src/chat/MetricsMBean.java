@@ -0,0 +1,61 @@
+package chat;
+
+/**
+ * JMX view of {@link Metrics}, registered as {@code chat:type=Metrics}. Times are in microseconds.
+ */
+public interface MetricsMBean {
+
+    long getConnectionsAccepted();
+
+    long getConnectionsClosed();
+
+    long getIdleDisconnects();
+
+    long getHeartbeats();
+
+    int getOnlineUsers();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getWriteCalls();
+
+    long getMessagesIn();
+
+    long getBroadcasts();
+
+    long getDeliveries();
+
+    long getCompressedInBytes();
+
+    long getCompressedOutBytes();
+
+    long getTotalQueuedBytes();
+
+    long getMaxQueuedBytes();
+
+    long getLoopIterationP50Micros();
+
+    long getLoopIterationP99Micros();
+
+    long getLoopIterationP999Micros();
+
+    long getHandleMessageP50Micros();
+
+    long getHandleMessageP99Micros();
+
+    long getHandleMessageP999Micros();
+
+    long getDeliveryLatencyP50Micros();
+
+    long getDeliveryLatencyP99Micros();
+
+    long getDeliveryLatencyP999Micros();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+}
@@ -0,0 +1,292 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pending outbound bytes for one connection.
+ * <p>
+ * {@link ChatServer#send} only appends here. The owning loop drains the queue once at the end of the
+ * iteration in which something was queued, or on {@code OP_WRITE} after the socket filled up. A partial
+ * write just leaves the rest of the buffer at the head of the queue instead of silently dropping it.
+ * <p>
+ * Lines queued in the same iteration go out together in one gathering write, so a client that gets
+ * dozens of broadcast lines per loop pass costs one syscall rather than dozens. A batch holds at most
+ * {@code chat.write.batchEntries} lines and stops growing once it reaches {@code chat.write.batchBytes}.
+ * <p>
+ * File relays are queued as a region of a {@link FileChannel} and sent with {@code transferTo}, so the
+ * file goes from the page cache to the socket without being copied onto the heap.
+ * <p>
+ * How much may pile up here is bounded by {@link SlowConsumerPolicy}; the counters below record what
+ * the policy had to throw away for this client. They are written by the owning loop only and may be
+ * read from anywhere for reporting.
+ */
+public class OutboundQueue {
+
+    /// Either a view of a shared payload, or a region of a file still to be transferred, raw or framed
+    private static final class Entry {
+        ByteBuffer buffer;
+        final SharedPayload owner;
+        final MessageKind kind; /// null for file regions
+        final FileChannel file;
+        long position;
+        final long end;
+        final int chunkBytes; /// > 0 for a file relayed as binary FILE_CHUNK frames, buffer then holds the header
+        final boolean deflate; /// framed chunks are read and compressed, buffer then holds the whole frame
+        long chunkEnd;
+
+        Entry(ByteBuffer buffer, SharedPayload owner, MessageKind kind) {
+            this.buffer = buffer;
+            this.owner = owner;
+            this.kind = kind;
+            this.file = null;
+            this.end = 0;
+            this.chunkBytes = 0;
+            this.deflate = false;
+        }
+
+        Entry(FileChannel file, long position, long end, int chunkBytes, boolean deflate) {
+            this.buffer = chunkBytes > 0 && !deflate ? ByteBuffer.allocate(BinaryProtocol.HEADER_BYTES) : null;
+            this.owner = null;
+            this.kind = null;
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.chunkBytes = chunkBytes;
+            this.deflate = deflate;
+            nextChunk();
+        }
+
+        /// File regions sent as binary frames go out one chunk at a time, each behind its frame header
+        void nextChunk() {
+            chunkEnd = chunkBytes > 0 ? Math.min(end, position + chunkBytes) : end;
+            if (deflate) {
+                buffer = null; /// built when the chunk is first written, reading the file can fail
+            } else if (buffer != null) {
+                BinaryProtocol.fileChunkHeader(buffer, (int) (chunkEnd - position));
+            }
+        }
+
+        long writeTo(SocketChannel channel) throws IOException {
+            if (file == null) {
+                return channel.write(buffer);
+            }
+            if (deflate) {
+                if (buffer == null) {
+                    buffer = FrameCompression.deflateFileChunk(file, position, (int) (chunkEnd - position));
+                    position = chunkEnd;
+                }
+                return channel.write(buffer);
+            }
+            long sent = 0;
+            if (buffer != null && buffer.hasRemaining()) {
+                sent = channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return sent;
+                }
+            }
+            long transferred = file.transferTo(position, chunkEnd - position, channel);
+            position += transferred;
+            return sent + transferred;
+        }
+
+        boolean isStarted() {
+            return file == null ? buffer.position() > 0 : position > 0;
+        }
+
+        /// The current chunk is out; for anything but a framed file that means the whole entry
+        boolean isChunkDone() {
+            return file == null ? !buffer.hasRemaining() : position >= chunkEnd && (buffer == null || !buffer.hasRemaining());
+        }
+
+        boolean isDone() {
+            return isChunkDone() && (file == null || position >= end);
+        }
+
+        void release() {
+            if (owner != null) {
+                owner.release();
+            }
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static final int batchEntries = Integer.getInteger("chat.write.batchEntries", 64);
+    private static final int batchBytes = Integer.getInteger("chat.write.batchBytes", 256 * 1024);
+    /// Scratch array for gathering writes; flush() only runs on event loop threads, one array each
+    private static final ThreadLocal<ByteBuffer[]> BATCH = ThreadLocal.withInitial(() -> new ByteBuffer[Math.max(1, batchEntries)]);
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private volatile long queuedBytes; /// in-memory bytes only, queued files live on disk
+    private volatile long peakQueuedBytes;
+    private volatile long droppedCount;
+    private volatile long conflatedCount;
+
+    /// Queues a view of a shared payload; the queue takes over one reference the caller already retained
+    public void add(SharedPayload payload, MessageKind kind) {
+        ByteBuffer view = payload.view();
+        entries.addLast(new Entry(view, payload, kind));
+        queuedBytes += view.remaining();
+        if (queuedBytes > peakQueuedBytes) {
+            peakQueuedBytes = queuedBytes;
+        }
+    }
+
+    /**
+     * Removes queued lines of {@code kind}, oldest first, until {@code policy} says the queue is under its
+     * limit. A line that is already partly written is never removed, and with {@code keepNewest} the most
+     * recent line of that kind stays.
+     *
+     * @return how many lines were removed
+     */
+    public int removeOldest(MessageKind kind, boolean keepNewest, SlowConsumerPolicy policy) {
+        Entry newest = null;
+        if (keepNewest) {
+            for (Iterator<Entry> it = entries.descendingIterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.kind == kind) {
+                    newest = entry;
+                    break;
+                }
+            }
+        }
+
+        int removed = 0;
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext() && policy.isOverLimit(this); ) {
+            Entry entry = it.next();
+            if (entry.kind != kind || entry == newest || entry.isStarted()) {
+                continue;
+            }
+            it.remove();
+            queuedBytes -= entry.buffer.remaining();
+            entry.release();
+            removed++;
+        }
+        if (keepNewest) {
+            conflatedCount += removed;
+        } else {
+            droppedCount += removed;
+        }
+        return removed;
+    }
+
+    /// Queues {@code [0, size)} of the file; the queue closes the channel once it has been sent or dropped
+    public void add(FileChannel file, long size) {
+        entries.addLast(new Entry(file, 0, size, 0, false));
+    }
+
+    /**
+     * Queues {@code [0, size)} of the file as {@link BinaryProtocol#FILE_CHUNK} frames of up to
+     * {@code chunkBytes}. After each chunk the rest of the file goes back to the end of the queue,
+     * so chat queued in the meantime is not stuck behind the whole file. With {@code deflate} each chunk
+     * is read and compressed when its turn comes, which gives up the zero-copy transfer for fewer bytes.
+     */
+    public void addFramed(FileChannel file, long size, int chunkBytes, boolean deflate) {
+        entries.addLast(new Entry(file, 0, size, chunkBytes, deflate));
+    }
+
+    /**
+     * Writes as much as the socket will take right now.
+     *
+     * @return {@code true} once the queue is empty, {@code false} if the kernel buffer filled up first
+     */
+    public boolean flush(SocketChannel channel) throws IOException {
+        Entry head;
+        while ((head = entries.peekFirst()) != null) {
+            if (head.file == null) {
+                if (!flushLines(channel)) {
+                    return false;
+                }
+                continue;
+            }
+            long written = head.writeTo(channel);
+            ChatServer.metrics.bytesOut.add(written);
+            ChatServer.metrics.writes.increment();
+            if (!head.isChunkDone()) {
+                return false; /// socket is full, wait for the next OP_WRITE
+            }
+            entries.pollFirst();
+            if (!head.isDone()) {
+                head.nextChunk(); /// take turns with whatever was queued behind the file
+                entries.addLast(head);
+                continue;
+            }
+            head.release();
+        }
+        return true;
+    }
+
+    /// Writes the lines at the head of the queue, up to the next file, in one gathering write
+    /// @return {@code false} if the socket did not take all of them
+    private boolean flushLines(SocketChannel channel) throws IOException {
+        ByteBuffer[] batch = BATCH.get();
+        int count = 0;
+        long bytes = 0;
+        for (Entry entry : entries) {
+            if (entry.file != null || count == batch.length || bytes >= batchBytes) {
+                break;
+            }
+            batch[count++] = entry.buffer;
+            bytes += entry.buffer.remaining();
+        }
+        long written = count == 1 ? channel.write(batch[0]) : channel.write(batch, 0, count);
+        ChatServer.metrics.bytesOut.add(written);
+        ChatServer.metrics.writes.increment();
+        queuedBytes -= written;
+
+        boolean all = true;
+        for (int i = 0; i < count; i++) {
+            batch[i] = null; /// don't keep buffers reachable from the thread's scratch array
+            Entry entry = entries.peekFirst();
+            if (!all || entry.buffer.hasRemaining()) {
+                all = false; /// socket is full, the rest waits for OP_WRITE
+                continue;
+            }
+            entries.pollFirst();
+            ChatServer.metrics.deliveryLatency.recordSince(entry.owner.getCreatedNanos());
+            entry.release();
+        }
+        return all;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getPeakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            entry.release();
+        }
+        queuedBytes = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Join, leave and rename notices, held for a short window and announced together.
+ * <p>
+ * Every join is a line for every other client, so when N clients reconnect at once (after a restart or a
+ * failover) the server would send about N² presence lines. Instead, events are collected for
+ * {@code chat.presence.windowMillis} after the first one and then go out as a single digest line that all
+ * recipients share, e.g. "👥 12 joined: User1, User2, …; 3 left: …". A list longer than
+ * {@code chat.presence.maxNames} is cut down to its count. A window that saw a single event sends that
+ * event as it always looked, so a quiet chat reads the same as before. A window of 0 turns coalescing off.
+ * <p>
+ * Events come from every event loop and from the cluster links, so the buffer is guarded by the digest's
+ * lock; {@code ChatServer} flushes it from one event loop's timer.
+ */
+public class PresenceDigest {
+
+    public enum Type {
+        JOINED("joined"),
+        LEFT("left"),
+        RENAMED("renamed");
+
+        private final String verb;
+
+        Type(String verb) {
+            this.verb = verb;
+        }
+    }
+
+    /// One event; {@code session} is the local client it is about, null for a user on another node
+    public record Event(Type type, ClientSession session, String name, String newName) {
+    }
+
+    private final long windowMillis;
+    private final int maxNames;
+    private List<Event> pending = new ArrayList<>();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder digests = new LongAdder();
+
+    public PresenceDigest(long windowMillis, int maxNames) {
+        this.windowMillis = windowMillis;
+        this.maxNames = maxNames;
+    }
+
+    public static PresenceDigest fromSystemProperties() {
+        return new PresenceDigest(Long.getLong("chat.presence.windowMillis", 250),
+                Integer.getInteger("chat.presence.maxNames", 20));
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /// @return true for the first event of a window: the caller then schedules {@link #drain()} a window from now
+    public synchronized boolean add(Event event) {
+        events.increment();
+        pending.add(event);
+        return pending.size() == 1;
+    }
+
+    /// Takes every event of the window that just ended, oldest first
+    public synchronized List<Event> drain() {
+        List<Event> window = pending;
+        pending = new ArrayList<>();
+        if (window.size() > 1) {
+            digests.increment();
+        }
+        return window;
+    }
+
+    /// The digest line for a window of events, without colors: one part per type, names up to maxNames each
+    public String format(List<Event> window) {
+        StringBuilder digest = new StringBuilder("👥");
+        String part = " ";
+        for (Type type : Type.values()) {
+            int count = 0;
+            for (Event event : window) {
+                if (event.type() == type) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            digest.append(part).append(count).append(' ').append(type.verb);
+            part = "; ";
+            if (count > maxNames) {
+                continue; /// just the count, a list of thousands of names helps nobody
+            }
+            String separator = ": ";
+            for (Event event : window) {
+                if (event.type() == type) {
+                    digest.append(separator).append(event.name());
+                    if (type == Type.RENAMED) {
+                        digest.append(" → ").append(event.newName());
+                    }
+                    separator = ", ";
+                }
+            }
+        }
+        return digest.toString();
+    }
+
+    public String describe() {
+        return isEnabled() ? windowMillis + " ms window, names up to " + maxNames : "off";
+    }
+
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    public long getDigestCount() {
+        return digests.sum();
+    }
+}
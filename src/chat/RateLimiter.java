@@ -0,0 +1,201 @@
+package chat;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate limits on what clients send, checked on the read path before anything is fanned out.
+ * <p>
+ * One broadcast line turns into a copy for every client, so one fast sender can fill everybody's
+ * socket. Each client gets a {@link TokenBucket} for messages and one for bytes, per kind of traffic
+ * ({@link Kind}). Broadcasts also draw from a server-wide budget, the one that bounds the amplified
+ * outbound traffic. Every limit is a rate per second ({@code 0} means unlimited) set with
+ * {@code -Dchat.rate.<kind>.messages} and {@code -Dchat.rate.<kind>.bytes}. Each bucket holds
+ * {@code chat.rate.burstSeconds} worth of tokens.
+ * <p>
+ * With {@code -Dchat.rate.mode=reject} (the default) a message over the limit is dropped. With
+ * {@code delay} it goes through, and the server stops reading from the client until it is back under
+ * the limit, so TCP pushes back on the sender. File offers and upload bytes are always delayed, never
+ * dropped: the client sends the file right after its offer, and a dropped offer would leave those bytes
+ * to be read as chat.
+ */
+public class RateLimiter {
+
+    public enum Kind {
+        /// main chat and room lines, limited per client and server-wide
+        BROADCAST("broadcast"),
+        /// /msg and binary PRIVATE frames
+        PRIVATE("msg"),
+        /// /sendfile offers (messages) and the uploaded data (bytes); both are only ever delayed
+        FILE("file");
+
+        private final String property;
+
+        Kind(String property) {
+            this.property = property;
+        }
+    }
+
+    /// A client's buckets, null where that limit is off; owned by the client's event loop
+    public static final class ClientBuckets {
+        private final TokenBucket[] messages = new TokenBucket[Kind.values().length];
+        private final TokenBucket[] bytes = new TokenBucket[Kind.values().length];
+        private boolean warned; /// told about a rejection since its last accepted message
+    }
+
+    private final boolean delay;
+    private final double burstSeconds;
+    private final long[] messagesPerSecond = new long[Kind.values().length];
+    private final long[] bytesPerSecond = new long[Kind.values().length];
+    private final TokenBucket globalMessages; /// broadcasts from all clients together, null when unlimited
+    private final TokenBucket globalBytes;
+    private final boolean enabled;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+
+    public RateLimiter(boolean delay, double burstSeconds, long globalMessagesPerSecond, long globalBytesPerSecond) {
+        this.delay = delay;
+        this.burstSeconds = burstSeconds;
+        this.globalMessages = globalMessagesPerSecond > 0 ? new TokenBucket(globalMessagesPerSecond, burstSeconds) : null;
+        this.globalBytes = globalBytesPerSecond > 0 ? new TokenBucket(globalBytesPerSecond, burstSeconds) : null;
+        boolean any = globalMessages != null || globalBytes != null;
+        for (Kind kind : Kind.values()) {
+            messagesPerSecond[kind.ordinal()] = Long.getLong("chat.rate." + kind.property + ".messages", 0);
+            bytesPerSecond[kind.ordinal()] = Long.getLong("chat.rate." + kind.property + ".bytes", 0);
+            any |= messagesPerSecond[kind.ordinal()] > 0 || bytesPerSecond[kind.ordinal()] > 0;
+        }
+        this.enabled = any;
+    }
+
+    public static RateLimiter fromSystemProperties() {
+        String mode = System.getProperty("chat.rate.mode", "reject").toLowerCase(Locale.ROOT);
+        if (!mode.equals("reject") && !mode.equals("delay")) {
+            throw new IllegalArgumentException("chat.rate.mode must be reject or delay, not " + mode);
+        }
+        return new RateLimiter(mode.equals("delay"),
+                Double.parseDouble(System.getProperty("chat.rate.burstSeconds", "2")),
+                Long.getLong("chat.rate.global.messages", 0),
+                Long.getLong("chat.rate.global.bytes", 0));
+    }
+
+    /// Fresh buckets for a client that just joined, or null when no limit is set at all
+    public ClientBuckets newClientBuckets() {
+        if (!enabled) {
+            return null;
+        }
+        ClientBuckets buckets = new ClientBuckets();
+        for (Kind kind : Kind.values()) {
+            int i = kind.ordinal();
+            buckets.messages[i] = messagesPerSecond[i] > 0 ? new TokenBucket(messagesPerSecond[i], burstSeconds) : null;
+            buckets.bytes[i] = bytesPerSecond[i] > 0 ? new TokenBucket(bytesPerSecond[i], burstSeconds) : null;
+        }
+        return buckets;
+    }
+
+    /**
+     * Charges one message of {@code bytes} bytes. In reject mode nothing is taken from the buckets
+     * when the message is over a limit: the client's buckets are taken first, then the server-wide ones,
+     * and the client's share is refunded if the server-wide take fails.
+     *
+     * @return 0 to go ahead; otherwise nanoseconds until the client is back under its limits. In reject
+     * mode the message must then be dropped; in delay mode it was let through and the client must wait.
+     */
+    public long admit(ClientBuckets buckets, Kind kind, long bytes, long now) {
+        if (buckets == null) {
+            return 0;
+        }
+        int i = kind.ordinal();
+        boolean global = kind == Kind.BROADCAST;
+        if (!delay) {
+            long wait = tryTake(buckets.messages[i], buckets.bytes[i], now, bytes);
+            if (wait == 0 && global) {
+                wait = tryTake(globalMessages, globalBytes, now, bytes);
+                if (wait > 0) {
+                    refund(buckets.messages[i], buckets.bytes[i], bytes);
+                }
+            }
+            if (wait > 0) {
+                rejected.increment();
+                return wait;
+            }
+            buckets.warned = false;
+            return 0;
+        }
+        long wait = Math.max(take(buckets.messages[i], now, 1), take(buckets.bytes[i], now, bytes));
+        if (global) {
+            wait = Math.max(wait, Math.max(take(globalMessages, now, 1), take(globalBytes, now, bytes)));
+        }
+        if (wait > 0) {
+            delayed.increment();
+        }
+        return wait;
+    }
+
+    /// Charges file offers and uploaded bytes, which can't be dropped: @return how long to stop reading, 0 for not at all
+    public long throttle(ClientBuckets buckets, long offers, long bytes, long now) {
+        if (buckets == null) {
+            return 0;
+        }
+        int i = Kind.FILE.ordinal();
+        long wait = Math.max(take(buckets.messages[i], now, offers), take(buckets.bytes[i], now, bytes));
+        if (wait > 0) {
+            delayed.increment();
+        }
+        return wait;
+    }
+
+    /// @return true the first time a client is rejected after an accepted message, so it is told once
+    public boolean shouldWarn(ClientBuckets buckets) {
+        if (buckets.warned) {
+            return false;
+        }
+        buckets.warned = true;
+        return true;
+    }
+
+    public boolean isDelaying() {
+        return delay;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String describe() {
+        return enabled ? (delay ? "delay" : "reject") + ", burst " + burstSeconds + " s" : "off";
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDelayedCount() {
+        return delayed.sum();
+    }
+
+    /// One message from a pair of buckets, all or nothing: @return 0 if taken, else nanoseconds to wait
+    private static long tryTake(TokenBucket messages, TokenBucket bytes, long now, long size) {
+        long wait = messages == null ? 0 : messages.tryTake(now, 1);
+        if (wait > 0 || bytes == null || size == 0) {
+            return wait;
+        }
+        wait = bytes.tryTake(now, size);
+        if (wait > 0 && messages != null) {
+            messages.refund(1);
+        }
+        return wait;
+    }
+
+    private static void refund(TokenBucket messages, TokenBucket bytes, long size) {
+        if (messages != null) {
+            messages.refund(1);
+        }
+        if (bytes != null && size > 0) {
+            bytes.refund(size);
+        }
+    }
+
+    private static long take(TokenBucket bucket, long now, long tokens) {
+        return bucket == null || tokens == 0 ? 0 : bucket.take(now, tokens);
+    }
+}
@@ -0,0 +1,80 @@
+package chat;
+
+import java.util.Arrays;
+
+/**
+ * A chat room: a name plus the ids of the sessions subscribed to it.
+ * <p>
+ * Members are kept as a sorted {@code int[]} of {@link ClientSession#getId() session ids} that is
+ * replaced, never modified, on join and leave. Fan-out just reads the current array without locking,
+ * so delivering to a room costs one pass over its own members, however many users are connected.
+ * <p>
+ * The room also keeps the recent lines said in it, replayed to members when they join; the history
+ * lives as long as the room does.
+ */
+public class Room {
+
+    private final String name;
+    private volatile int[] members = new int[0];
+    private final HistoryRing history;
+
+    public Room(String name, HistoryRing history) {
+        this.name = name;
+        this.history = history;
+    }
+
+    /// @return {@code false} if the session was already a member
+    public synchronized boolean add(int sessionId) {
+        int[] current = members;
+        int at = Arrays.binarySearch(current, sessionId);
+        if (at >= 0) {
+            return false;
+        }
+        int insert = -at - 1;
+        int[] next = new int[current.length + 1];
+        System.arraycopy(current, 0, next, 0, insert);
+        next[insert] = sessionId;
+        System.arraycopy(current, insert, next, insert + 1, current.length - insert);
+        members = next;
+        return true;
+    }
+
+    /// @return {@code false} if the session was not a member
+    public synchronized boolean remove(int sessionId) {
+        int[] current = members;
+        int at = Arrays.binarySearch(current, sessionId);
+        if (at < 0) {
+            return false;
+        }
+        int[] next = new int[current.length - 1];
+        System.arraycopy(current, 0, next, 0, at);
+        System.arraycopy(current, at + 1, next, at, current.length - at - 1);
+        members = next;
+        return true;
+    }
+
+    /// Current members; the array is a snapshot and must not be modified
+    public int[] members() {
+        return members;
+    }
+
+    public boolean contains(int sessionId) {
+        return Arrays.binarySearch(members, sessionId) >= 0;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public HistoryRing getHistory() {
+        return history;
+    }
+}
@@ -0,0 +1,65 @@
+package chat;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room name to {@link Room}. A room is created by its first {@code /join} and dropped when its last
+ * member leaves; both happen inside {@code compute} so a join can never land in a room that is being
+ * removed at the same moment.
+ */
+public class RoomRegistry {
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int historyBytes; /// history ring size given to each new room
+    private final int historyLines;
+
+    public RoomRegistry(int historyBytes, int historyLines) {
+        this.historyBytes = historyBytes;
+        this.historyLines = historyLines;
+    }
+
+    /// @return {@code false} if the session was already in the room
+    public boolean join(String roomName, int sessionId) {
+        boolean[] added = new boolean[1];
+        rooms.compute(roomName, (name, room) -> {
+            if (room == null) {
+                room = new Room(name, new HistoryRing(historyBytes, historyLines));
+            }
+            added[0] = room.add(sessionId);
+            return room;
+        });
+        return added[0];
+    }
+
+    /// @return {@code false} if the session was not in the room
+    public boolean leave(String roomName, int sessionId) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            removed[0] = room.remove(sessionId);
+            return room.isEmpty() ? null : room;
+        });
+        return removed[0];
+    }
+
+    public Room get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    public Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    /// Room names look like "#general": a '#' followed by at least one non-space character
+    public static boolean isValidName(String roomName) {
+        if (roomName.length() < 2 || roomName.charAt(0) != '#') {
+            return false;
+        }
+        for (int i = 1; i < roomName.length(); i++) {
+            if (Character.isWhitespace(roomName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
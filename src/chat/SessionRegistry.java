@@ -0,0 +1,171 @@
+package chat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The one place that knows who is connected.
+ * <p>
+ * Lookup by name is a {@link ConcurrentHashMap} get; lookup by channel needs no map at all, because the
+ * {@link ClientSession} is the attachment of its {@code SelectionKey}. Register, rename and remove are
+ * serialized on the registry so a name always maps to exactly one live session and {@code /who} never
+ * sees a user under both the old and the new name. Lookups and iteration stay lock-free.
+ * <p>
+ * Each registered session also gets a small int id, which rooms store instead of names. Ids index a
+ * slot table and freed ids are handed out again oldest-first, which keeps the table dense.
+ * <p>
+ * The {@code /who} text is kept per block of {@value #SNAPSHOT_BLOCK} ids. A join, leave or rename
+ * only makes its own block stale, so after a burst of reconnects the list is rebuilt from the few
+ * blocks that changed, with the others copied as they are.
+ */
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<String, ClientSession> byName = new ConcurrentHashMap<>();
+
+    /// id -> session; replaced (volatile write) whenever a slot changes, so byId() needs no lock
+    private volatile ClientSession[] slots = new ClientSession[64];
+    private int nextUnusedId = 0;
+    private int[] freeIds = new int[16]; /// FIFO ring of released ids
+    private int freeHead = 0;
+    private int freeCount = 0;
+
+    private static final int SNAPSHOT_BLOCK = 64;
+    /// "/who" text of each block of ids, null once a session in it changed
+    private String[] blockText = new String[4];
+    /// All blocks joined, null once any of them is stale
+    private String snapshot = "";
+
+    /// @return {@code false} if the session's name is already taken
+    public synchronized boolean register(ClientSession session) {
+        if (byName.putIfAbsent(session.getUsername(), session) != null) {
+            return false;
+        }
+        int id = allocateId();
+        ClientSession[] table = slots;
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[id] = session;
+        session.setId(id);
+        slots = table; /// publish
+        changed(id);
+        return true;
+    }
+
+    /**
+     * Moves {@code session} to {@code newName}. The new name is claimed before the old one is released,
+     * so two sessions racing for the same name cannot both win.
+     *
+     * @return {@code false} if {@code newName} is already taken
+     */
+    public synchronized boolean rename(ClientSession session, String newName) {
+        if (byName.putIfAbsent(newName, session) != null) {
+            return false;
+        }
+        byName.remove(session.getUsername(), session);
+        session.setUsername(newName);
+        changed(session.getId());
+        return true;
+    }
+
+    public synchronized void remove(ClientSession session) {
+        if (byName.remove(session.getUsername(), session)) {
+            ClientSession[] table = slots;
+            table[session.getId()] = null;
+            releaseId(session.getId());
+            slots = table; /// publish
+            changed(session.getId());
+        }
+    }
+
+    public ClientSession get(String name) {
+        return byName.get(name);
+    }
+
+    public ClientSession byId(int id) {
+        ClientSession[] table = slots;
+        return id >= 0 && id < table.length ? table[id] : null;
+    }
+
+    public boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    /// Live view for fan-out; weakly consistent, never throws on concurrent change
+    public Collection<ClientSession> sessions() {
+        return byName.values();
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /// Comma-separated online users, consistent with one point in time
+    public synchronized String snapshot() {
+        if (snapshot == null) {
+            ClientSession[] table = slots;
+            StringBuilder users = new StringBuilder();
+            int blocks = (nextUnusedId + SNAPSHOT_BLOCK - 1) / SNAPSHOT_BLOCK;
+            for (int block = 0; block < blocks; block++) {
+                if (blockText[block] == null) {
+                    blockText[block] = joinBlock(table, block);
+                }
+                if (!blockText[block].isEmpty()) {
+                    if (users.length() > 0) {
+                        users.append(", ");
+                    }
+                    users.append(blockText[block]);
+                }
+            }
+            snapshot = users.toString();
+        }
+        return snapshot;
+    }
+
+    private void changed(int id) {
+        int block = id / SNAPSHOT_BLOCK;
+        if (block >= blockText.length) {
+            blockText = Arrays.copyOf(blockText, Math.max(block + 1, blockText.length * 2));
+        }
+        blockText[block] = null;
+        snapshot = null;
+    }
+
+    private static String joinBlock(ClientSession[] table, int block) {
+        StringBuilder names = new StringBuilder();
+        int end = Math.min(table.length, (block + 1) * SNAPSHOT_BLOCK);
+        for (int id = block * SNAPSHOT_BLOCK; id < end; id++) {
+            if (table[id] != null) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(table[id].getUsername());
+            }
+        }
+        return names.toString();
+    }
+
+    private int allocateId() {
+        if (freeCount == 0) {
+            return nextUnusedId++;
+        }
+        int id = freeIds[freeHead];
+        freeHead = (freeHead + 1) % freeIds.length;
+        freeCount--;
+        return id;
+    }
+
+    private void releaseId(int id) {
+        if (freeCount == freeIds.length) {
+            int[] grown = new int[freeIds.length * 2];
+            for (int i = 0; i < freeCount; i++) {
+                grown[i] = freeIds[(freeHead + i) % freeIds.length];
+            }
+            freeIds = grown;
+            freeHead = 0;
+        }
+        freeIds[(freeHead + freeCount) % freeIds.length] = id;
+        freeCount++;
+    }
+}
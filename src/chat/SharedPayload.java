@@ -0,0 +1,97 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded message shared by every recipient of a broadcast.
+ * <p>
+ * The line is turned into UTF-8 bytes once; each recipient queue gets its own read-only
+ * {@link #view()} (separate position, same bytes). The payload is reference counted: the broadcaster
+ * holds one reference while fanning out, every queued view holds one more, and when the last one is
+ * released a pooled backing buffer goes back to its {@link BufferPool}.
+ */
+public class SharedPayload {
+
+    /// Encoders are not thread-safe, each event loop thread keeps its own
+    private static final ThreadLocal<CharsetEncoder> ENCODER =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    private final ByteBuffer data; /// read mode: [0, limit) is the encoded line
+    private final BufferPool pool; /// null when the buffer did not come from a pool
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final long createdNanos = System.nanoTime(); /// start of the read-to-deliver latency
+
+    private SharedPayload(ByteBuffer data, BufferPool pool) {
+        this.data = data;
+        this.pool = pool;
+    }
+
+    /**
+     * Encodes {@code line} plus a trailing newline. Uses a buffer from {@code pool} when the line fits,
+     * otherwise falls back to a plain heap array. The caller owns the initial reference.
+     */
+    public static SharedPayload encode(String line, BufferPool pool) {
+        /// UTF-8 needs at most 3 bytes per UTF-16 char, so this check guarantees a fit
+        if ((long) line.length() * 3 + 1 <= pool.getBufferSize()) {
+            ByteBuffer buffer = pool.acquire();
+            CharsetEncoder encoder = ENCODER.get().reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(line), buffer, true);
+            if (result.isUnderflow()) {
+                encoder.flush(buffer);
+                buffer.put((byte) '\n');
+                buffer.flip();
+                return new SharedPayload(buffer, pool);
+            }
+            pool.release(buffer); /// malformed input, let getBytes() substitute as before
+        }
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        return new SharedPayload(ByteBuffer.wrap(bytes), null);
+    }
+
+    /// Takes over a buffer from {@code pool} that is already filled and flipped
+    public static SharedPayload pooled(ByteBuffer data, BufferPool pool) {
+        return new SharedPayload(data, pool);
+    }
+
+    /// Wraps bytes that are already encoded; nothing is pooled
+    public static SharedPayload wrap(ByteBuffer data) {
+        return new SharedPayload(data, null);
+    }
+
+    /// A private read-only cursor over the payload; take a reference with {@link #retain()} first
+    public ByteBuffer view() {
+        return data.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return data.remaining();
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /// Copies the payload bytes into {@code dst} at {@code offset} without touching any buffer position
+    public void copyTo(byte[] dst, int offset) {
+        data.get(data.position(), dst, offset, data.remaining());
+    }
+
+    public SharedPayload retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0 && pool != null) {
+            pool.release(data);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("SharedPayload released too many times");
+        }
+    }
+}
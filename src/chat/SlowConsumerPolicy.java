@@ -0,0 +1,113 @@
+package chat;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps how much the server buffers for one client and decides what gives when a client stops reading.
+ * <p>
+ * Every connection may hold up to {@code maxBytes} / {@code maxMessages} of queued output. Each
+ * {@link MessageKind} has an action saying what may be given up for it:
+ * <ul>
+ *   <li>{@code DROP_OLDEST} - the oldest queued lines of that kind can be thrown away</li>
+ *   <li>{@code CONFLATE} - queued lines of that kind can be collapsed to the newest one</li>
+ *   <li>{@code DISCONNECT} - lines of that kind are never dropped</li>
+ * </ul>
+ * When a new line pushes a queue over the limit, the new line's own kind is relieved first, then the
+ * other droppable kinds. If the queue is still over the limit the client gets a notice and is
+ * disconnected, so one stalled reader can never hold more than the limit.
+ */
+public class SlowConsumerPolicy {
+
+    public enum Action { DROP_OLDEST, CONFLATE, DISCONNECT }
+
+    private final long maxBytes;
+    private final int maxMessages;
+    private final EnumMap<MessageKind, Action> actions = new EnumMap<>(MessageKind.class);
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    public SlowConsumerPolicy(long maxBytes, int maxMessages, Action chat, Action presence, Action direct) {
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+        actions.put(MessageKind.CHAT, chat);
+        actions.put(MessageKind.PRESENCE, presence);
+        actions.put(MessageKind.DIRECT, direct);
+    }
+
+    /// Builds the policy from the {@code chat.outbound.*} and {@code chat.slow.*} system properties
+    public static SlowConsumerPolicy fromSystemProperties() {
+        return new SlowConsumerPolicy(
+                Long.getLong("chat.outbound.maxBytes", 1024 * 1024),
+                Integer.getInteger("chat.outbound.maxMessages", 4096),
+                action("chat.slow.chat", Action.DROP_OLDEST),
+                action("chat.slow.presence", Action.CONFLATE),
+                action("chat.slow.direct", Action.DISCONNECT));
+    }
+
+    private static Action action(String property, Action fallback) {
+        String value = System.getProperty(property);
+        return value == null ? fallback : Action.valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    public boolean isOverLimit(OutboundQueue queue) {
+        return queue.getQueuedBytes() > maxBytes || queue.size() > maxMessages;
+    }
+
+    /**
+     * Runs the action for {@code kind} on a queue that just went over the limit.
+     *
+     * @return {@code true} if the queue is back under the limit, {@code false} if the client has to go
+     */
+    public boolean relieve(OutboundQueue queue, MessageKind kind) {
+        apply(queue, kind);
+        for (MessageKind other : MessageKind.values()) {
+            if (other != kind && isOverLimit(queue)) {
+                apply(queue, other);
+            }
+        }
+        return !isOverLimit(queue);
+    }
+
+    private void apply(OutboundQueue queue, MessageKind kind) {
+        Action action = actions.get(kind);
+        if (action == Action.DROP_OLDEST) {
+            dropped.add(queue.removeOldest(kind, false, this));
+        } else if (action == Action.CONFLATE) {
+            conflated.add(queue.removeOldest(kind, true, this));
+        }
+    }
+
+    public void recordDisconnect() {
+        disconnected.increment();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getConflatedCount() {
+        return conflated.sum();
+    }
+
+    public long getDisconnectCount() {
+        return disconnected.sum();
+    }
+
+    public String describe() {
+        return "limit " + maxBytes + " bytes / " + maxMessages + " messages, " + actions
+                + "; dropped=" + getDroppedCount() + " conflated=" + getConflatedCount()
+                + " disconnected=" + getDisconnectCount();
+    }
+}
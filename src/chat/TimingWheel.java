@@ -0,0 +1,152 @@
+package chat;
+
+/**
+ * Hashed timing wheel for an {@link EventLoop}'s timers: handshake windows, idle checks and heartbeats.
+ * <p>
+ * Time is cut into ticks of {@code tickMillis}, and a ring of {@code wheelSize} buckets holds the timers
+ * due in each tick. A timer further out than one turn of the ring waits a number of extra rounds in its
+ * bucket. Scheduling and cancelling are O(1), whatever the number of timers, so every connection
+ * can keep one without a timer thread or a heap that grows with the connection count. The price is
+ * precision: a timer fires on the first tick boundary at or after its deadline.
+ * <p>
+ * Not thread-safe; the owning loop is the only caller.
+ */
+public class TimingWheel {
+
+    /// A scheduled task; {@link #cancel()} it if it should not run after all
+    public static final class Timeout {
+        private final Runnable task;
+        private long rounds;        /// turns of the wheel left before it is due
+        private int bucket = -1;    /// index while linked into a bucket, -1 once it left the wheel
+        private boolean cancelled;
+        private Timeout prev;
+        private Timeout next;
+        private TimingWheel wheel;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /// Stops the task from running; does nothing if it already ran
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (bucket >= 0) {
+                wheel.unlink(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startNanos;
+    private long tick;  /// next tick to expire; tick i is due once (i + 1) ticks have passed since startNanos
+    private int size;   /// timers waiting in the buckets
+
+    public TimingWheel(int tickMillis, int wheelSize) {
+        if (tickMillis < 1 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("tickMillis must be positive and wheelSize a power of two");
+        }
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /// Runs {@code task} on the first tick at least {@code delayMillis} from {@code now}
+    public Timeout schedule(long now, long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        timeout.wheel = this;
+        long due = (now + Math.max(0, delayMillis) * 1_000_000L - startNanos + tickNanos - 1) / tickNanos - 1;
+        due = Math.max(due, tick);
+        timeout.rounds = (due - tick) / buckets.length;
+        link(timeout, (int) (due & mask));
+        return timeout;
+    }
+
+    /// Runs every timer whose tick has passed by {@code now}
+    public void advance(long now) {
+        long passed = (now - startNanos) / tickNanos; /// ticks completed so far
+        if (size == 0) {
+            tick = Math.max(tick, passed); /// nothing to visit, skip ahead after a long idle select()
+            return;
+        }
+        while (tick < passed) {
+            // First take the due timers out of the bucket, then run them: a task may cancel or
+            // schedule other timers, and those must find the bucket in a consistent state
+            int index = (int) (tick & mask);
+            Timeout due = null;
+            Timeout timeout = buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    unlink(timeout);
+                    timeout.next = due;
+                    due = timeout;
+                }
+                timeout = next;
+            }
+            tick++; /// tasks that schedule again land in a later tick, not the bucket just emptied
+            while (due != null) {
+                timeout = due;
+                due = timeout.next;
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    timeout.cancelled = true; /// ran, so a late cancel() is a no-op
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ChatServer.logger.severe("Timer failed: {}", e); /// the rest of the due timers still run
+                    }
+                }
+            }
+        }
+    }
+
+    /// How long select() may sleep before the next tick is due: 0 if one is due now, -1 with no timers at all
+    public long waitMillis(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        long nextTick = startNanos + (tick + 1) * tickNanos;
+        return Math.max(0, (nextTick - now + 999_999) / 1_000_000);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void link(Timeout timeout, int index) {
+        Timeout head = buckets[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.bucket = index;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
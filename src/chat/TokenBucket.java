@@ -0,0 +1,76 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills lazily from {@link System#nanoTime()}: no thread, no timer.
+ * <p>
+ * Instead of a token count it keeps one timestamp, the moment the bucket will be full again (the
+ * "theoretical arrival time" of GCRA). Taking {@code n} tokens pushes that moment {@code n} refill
+ * intervals later, and a take is over the limit when it would push it more than the burst into the
+ * future. That is the same limit as a counter refilled every interval, but it is one number. A
+ * compare-and-set on it is enough to share a bucket between event loops.
+ */
+public class TokenBucket {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /// {@code perSecond} tokens a second, of which up to {@code perSecond * burstSeconds} can be taken at once
+    public TokenBucket(long perSecond, double burstSeconds) {
+        if (perSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + perSecond);
+        }
+        this.nanosPerToken = Math.max(1, 1_000_000_000L / perSecond);
+        this.burstNanos = Math.max(nanosPerToken, (long) (burstSeconds * 1_000_000_000L));
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes {@code tokens} only if there are enough. Check and take are one compare-and-set, so threads
+     * sharing the bucket can't both pass the check and overdraw it together.
+     *
+     * @return 0 if they were taken, otherwise how many nanoseconds until they could be
+     */
+    public long tryTake(long now, long tokens) {
+        long cost = cost(tokens);
+        while (true) {
+            long previous = fullAt.get();
+            long next = Math.max(previous, now) + cost;
+            long over = next - burstNanos - now;
+            if (over > 0) {
+                return over;
+            }
+            if (fullAt.compareAndSet(previous, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /// Gives back tokens from a {@link #tryTake} whose message was turned down by another bucket after all
+    public void refund(long tokens) {
+        fullAt.addAndGet(-cost(tokens));
+    }
+
+    /**
+     * Takes {@code tokens} whether or not there are enough, going into debt if needed.
+     *
+     * @return how many nanoseconds the caller should hold off to pay the debt back, 0 if there was none
+     */
+    public long take(long now, long tokens) {
+        long cost = cost(tokens);
+        long previous;
+        long next;
+        do {
+            previous = fullAt.get();
+            next = Math.max(previous, now) + cost;
+        } while (!fullAt.compareAndSet(previous, next));
+        return Math.max(0, next - burstNanos - now);
+    }
+
+    /// Anything larger than the whole burst costs just the burst, otherwise it could never be let through
+    private long cost(long tokens) {
+        return tokens >= burstNanos / nanosPerToken ? burstNanos : tokens * nanosPerToken;
+    }
+}
@@ -0,0 +1,88 @@
+package chat;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Threads for work that may block (disk writes, opening files, future lookups), so it never runs on an
+ * event loop.
+ * <p>
+ * With {@code -Dchat.workers=virtual} every task gets its own virtual thread. That needs a JDK 21
+ * runtime; the executor is looked up reflectively because the server is built for 17. On an older
+ * runtime, or with {@code -Dchat.workers=platform}, a fixed pool of {@code chat.workers.threads}
+ * daemon threads is used.
+ * <p>
+ * The pool only runs tasks. Handing results back to the loop and keeping each client's messages in
+ * order is done by {@link ChatServer}: a client whose work is out here reads nothing until the
+ * result has come back through its loop's mailbox.
+ */
+public class WorkerPool {
+
+    private final ExecutorService executor;
+    private final String description;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    private WorkerPool(ExecutorService executor, String description) {
+        this.executor = executor;
+        this.description = description;
+    }
+
+    /// @return the configured pool, or {@code null} when blocking work runs on the event loops (the default)
+    public static WorkerPool fromSystemProperties() {
+        String mode = System.getProperty("chat.workers", "off").toLowerCase(Locale.ROOT);
+        int threads = Integer.getInteger("chat.workers.threads", 8);
+        switch (mode) {
+            case "off":
+                return null;
+            case "virtual":
+                try {
+                    ExecutorService virtual = (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    return new WorkerPool(virtual, "virtual threads");
+                } catch (ReflectiveOperationException e) {
+                    ChatServer.logger.info("Virtual threads need JDK 21, using {} platform worker threads", threads);
+                }
+                return platform(threads);
+            case "platform":
+                return platform(threads);
+            default:
+                throw new IllegalArgumentException("chat.workers must be off, platform or virtual, not " + mode);
+        }
+    }
+
+    private static WorkerPool platform(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return new WorkerPool(Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "chat-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), threads + " platform threads");
+    }
+
+    public void execute(Runnable task) {
+        submitted.increment();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                completed.increment();
+            }
+        });
+    }
+
+    public String describe() {
+        return description;
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+}